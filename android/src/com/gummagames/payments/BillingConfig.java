@@ -15,6 +15,10 @@
 
 package com.gummagames.payments;
 
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
 import android.os.Bundle;
 
 /**
@@ -29,6 +33,16 @@ public class BillingConfig {
 	 */
 	private String publicKey;
 	
+	/**
+	 * Additional public keys, indexed by key ID
+	 */
+	private LinkedHashMap<String, String> publicKeys = new LinkedHashMap<String, String>();
+	
+	/**
+	 * Key ID or fingerprint of the key to verify with
+	 */
+	private String publicKeyHint = null;
+	
 	/**
 	 * Bundle to hold additional information
 	 */
@@ -41,6 +55,123 @@ public class BillingConfig {
 	
 	private boolean debug = false;
 	
+	/**
+	 * Flag for recording verified purchases in the on-device ledger
+	 */
+	private boolean usePurchaseLedger = true;
+	
+	/**
+	 * Indicates if verified purchases are recorded in the on-device
+	 * {@link PurchaseLedger}
+	 * @return
+	 */
+	public boolean usePurchaseLedger() {
+		return usePurchaseLedger;
+	}
+
+	/**
+	 * Turns the on-device purchase ledger on or off.
+	 * You must call initialize after changing this flag
+	 * @param enabled
+	 */
+	public void setUsePurchaseLedger(boolean enabled) {
+		this.usePurchaseLedger = enabled;
+	}
+	
+	/**
+	 * How long to wait for Market to answer a request before failing it
+	 */
+	private long requestTimeoutMillis = 60 * 1000L;
+	
+	/**
+	 * How long to wait for the answer to a purchase request, which includes
+	 * the time the user spends on the buy page
+	 */
+	private long purchaseTimeoutMillis = 15 * 60 * 1000L;
+	
+	public long getRequestTimeoutMillis() {
+		return requestTimeoutMillis;
+	}
+
+	/**
+	 * Sets how long to wait for Market's response code before a request is
+	 * failed back to listeners with {@link BillingResponseCode#ERROR}
+	 * @param millis
+	 */
+	public void setRequestTimeoutMillis(long millis) {
+		this.requestTimeoutMillis = millis;
+	}
+	
+	public long getPurchaseTimeoutMillis() {
+		return purchaseTimeoutMillis;
+	}
+
+	/**
+	 * Sets how long to wait for Market's response code to a purchase request.
+	 * This includes the time the user spends on the buy page.
+	 * @param millis
+	 */
+	public void setPurchaseTimeoutMillis(long millis) {
+		this.purchaseTimeoutMillis = millis;
+	}
+	
+	/**
+	 * Confirmations are gathered for this long and sent as one request
+	 */
+	private long confirmBatchWindowMillis = 250;
+	
+	/**
+	 * Confirmations are sent at once when this many are waiting
+	 */
+	private int confirmBatchSize = 64;
+	
+	public long getConfirmBatchWindowMillis() {
+		return confirmBatchWindowMillis;
+	}
+
+	/**
+	 * Sets the longest time a notification confirmation waits to be merged
+	 * with others into one CONFIRM_NOTIFICATIONS request
+	 * @param millis
+	 */
+	public void setConfirmBatchWindowMillis(long millis) {
+		this.confirmBatchWindowMillis = millis;
+	}
+	
+	public int getConfirmBatchSize() {
+		return confirmBatchSize;
+	}
+
+	/**
+	 * Sets the number of waiting confirmations that are sent without
+	 * waiting for the batch window to close
+	 * @param size
+	 */
+	public void setConfirmBatchSize(int size) {
+		this.confirmBatchSize = size;
+	}
+	
+	/**
+	 * How long the billing service stays bound to Market with no work. Off
+	 * by default, so a purchase never waits for a cold bind.
+	 */
+	private long idleUnbindMillis = 0;
+	
+	public long getIdleUnbindMillis() {
+		return idleUnbindMillis;
+	}
+
+	/**
+	 * Sets how long the billing service keeps its Market binding once all
+	 * requests have finished. The next request binds again, so the first
+	 * purchase after an idle period waits for the bind. Zero or less, the
+	 * default, keeps the binding until the billing service is unbound.
+	 * @param millis
+	 */
+	public void setIdleUnbindMillis(long millis) {
+		this.idleUnbindMillis = millis;
+	}
+	
 	public boolean isDebug() {
 		return debug;
 	}
@@ -91,6 +222,44 @@ public class BillingConfig {
 		this.publicKey = publicKey;
 	}
 
+	/**
+	 * Registers an additional public key, for apps that ship several flavors
+	 * or rotate keys. All keys are parsed once when the PurchaseManager is
+	 * initialized, so add them before calling initialize.
+	 * 
+	 * @param keyId identifier used as the key hint
+	 * @param publicKey Base64 encoded public key
+	 */
+	public void addPublicKey(String keyId, String publicKey) {
+		publicKeys.put(keyId, publicKey);
+	}
+
+	/**
+	 * Additional public keys, indexed by key ID
+	 * @return
+	 */
+	public Map<String, String> getPublicKeys() {
+		return Collections.unmodifiableMap(publicKeys);
+	}
+
+	/**
+	 * Key ID or SHA-1 fingerprint of the key used to verify purchases.
+	 * When not set, the key from {@link #setPublicKey(String)} is used.
+	 * @return
+	 */
+	public String getPublicKeyHint() {
+		return publicKeyHint;
+	}
+
+	/**
+	 * Selects the key used to verify purchases by key ID or by the hex SHA-1
+	 * fingerprint of the encoded key
+	 * @param publicKeyHint
+	 */
+	public void setPublicKeyHint(String publicKeyHint) {
+		this.publicKeyHint = publicKeyHint;
+	}
+
 	/**
 	 * Indicates of client-side (in-app) signature verification should be used
 	 * @return
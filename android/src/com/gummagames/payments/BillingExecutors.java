@@ -0,0 +1,178 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+import android.os.Process;
+
+/**
+ * Shared background executors used by the billing system
+ */
+public final class BillingExecutors {
+
+	private BillingExecutors() {
+	}
+
+	private static volatile ExecutorService sCpuPool = null;
+	private static volatile Handler sWorker = null;
+	private static volatile Handler sMain = null;
+
+	/**
+	 * Handler for the billing worker, a single background looper thread that
+	 * owns all binder calls to the market and the processing of its
+	 * responses. Work posted here runs in order, one item at a time.
+	 *
+	 * @return
+	 */
+	public static Handler worker() {
+		Handler handler = sWorker;
+		if (handler == null) {
+			synchronized (BillingExecutors.class) {
+				handler = sWorker;
+				if (handler == null) {
+					HandlerThread thread = new HandlerThread("billing-worker", Process.THREAD_PRIORITY_BACKGROUND);
+					thread.start();
+					handler = new Handler(thread.getLooper());
+					sWorker = handler;
+				}
+			}
+		}
+		return handler;
+	}
+
+	/**
+	 * True when called from the billing worker thread
+	 *
+	 * @return
+	 */
+	public static boolean isWorkerThread() {
+		Handler handler = sWorker;
+		return handler != null && handler.getLooper().getThread() == Thread.currentThread();
+	}
+
+	/**
+	 * Handler for the main (UI) thread
+	 *
+	 * @return
+	 */
+	public static Handler main() {
+		Handler handler = sMain;
+		if (handler == null) {
+			handler = new Handler(Looper.getMainLooper());
+			sMain = handler;
+		}
+		return handler;
+	}
+
+	/**
+	 * Runs r on the main thread, where listener callbacks are delivered
+	 *
+	 * @param r
+	 */
+	public static void postToMain(Runnable r) {
+		main().post(r);
+	}
+
+	/**
+	 * Number of threads in the CPU pool, one per core
+	 *
+	 * @return
+	 */
+	public static int cpuPoolSize() {
+		return Math.max(1, Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Bounded pool for CPU bound work such as signature verification and
+	 * JSON parsing. Sized to the number of cores on the device.
+	 *
+	 * @return
+	 */
+	public static ExecutorService cpuPool() {
+		ExecutorService pool = sCpuPool;
+		if (pool == null) {
+			synchronized (BillingExecutors.class) {
+				pool = sCpuPool;
+				if (pool == null) {
+					int size = cpuPoolSize();
+					pool = new ThreadPoolExecutor(size, size, 0L, TimeUnit.MILLISECONDS,
+							new LinkedBlockingQueue<Runnable>(), new CpuThreadFactory());
+					sCpuPool = pool;
+				}
+			}
+		}
+		return pool;
+	}
+
+	/**
+	 * True when called from a CPU pool thread. Work running on the pool must
+	 * not block waiting on more pool tasks, or a full pool deadlocks.
+	 *
+	 * @return
+	 */
+	public static boolean isCpuPoolThread() {
+		return Thread.currentThread() instanceof CpuThread;
+	}
+
+	private static class CpuThread extends Thread {
+		CpuThread(Runnable r, String name) {
+			super(r, name);
+		}
+	}
+
+	private static class CpuThreadFactory extends NamedThreadFactory {
+		CpuThreadFactory() {
+			super("billing-cpu");
+		}
+
+		@Override
+		Thread createThread(Runnable r, String name) {
+			return new CpuThread(r, name);
+		}
+	}
+
+	/**
+	 * Creates low priority daemon threads so billing work never keeps the
+	 * process alive or competes with the UI thread
+	 */
+	static class NamedThreadFactory implements ThreadFactory {
+		private final String mPrefix;
+		private final AtomicInteger mCount = new AtomicInteger();
+
+		NamedThreadFactory(String prefix) {
+			mPrefix = prefix;
+		}
+
+		Thread createThread(Runnable r, String name) {
+			return new Thread(r, name);
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = createThread(r, mPrefix + "-" + mCount.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.MIN_PRIORITY);
+			return t;
+		}
+	}
+}
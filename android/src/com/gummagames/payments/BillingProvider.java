@@ -15,6 +15,8 @@
 
 package com.gummagames.payments;
 
+import java.util.List;
+
 import android.content.Context;
 
 /**
@@ -45,6 +47,14 @@ public interface BillingProvider {
 	 */
 	void attachBillingResponseListener(BillingResponseListener listener);
 	
+	/**
+	 * Asks the billing service to resend every purchase the user has made.
+	 * {@link RestoreTransactionsListener}s hear whether the market accepted
+	 * the request, and get the restored purchases in chunks as they arrive.
+	 * @return false if the request could not be sent
+	 */
+	boolean restoreTransactions();
+	
 	/**
 	 * Mechanism to set the Activity context of the Activity launching the request for billing
 	 * @param launchingContext
@@ -82,5 +92,47 @@ public interface BillingProvider {
 		void onPurchaseFailed(PaidProduct product, int responseCode);
 
 	}
+	
+	/**
+	 * Listener that receives purchase events as pooled {@link PurchaseEvent}
+	 * records instead of new PaidProduct objects, for apps that handle events
+	 * mid-frame and want to avoid garbage.  When attached, onPurchaseEvent is
+	 * called in place of onPurchaseSuccess and onPurchaseFailed.
+	 *
+	 */
+	public interface PurchaseEventListener extends BillingResponseListener{
+		
+		/**
+		 * Event fired for every purchase success or failure.  The event is
+		 * recycled as soon as this returns, so copy any fields you need to keep.
+		 * @param event
+		 */
+		void onPurchaseEvent(PurchaseEvent event);
+	}
+	
+	/**
+	 * Listener for restoring the user's purchases.  Restored purchases arrive
+	 * in chunks as each signed payload is verified, so the UI can unlock items
+	 * before the whole restore is done.  Restored purchases are delivered
+	 * only through onRestoredPurchases, not onPurchaseSuccess.
+	 *
+	 */
+	public interface RestoreTransactionsListener extends BillingResponseListener{
+		
+		/**
+		 * Event fired for each chunk of restored purchases
+		 * @param purchases verified purchases, in the order the market sent them
+		 */
+		void onRestoredPurchases(List<PaidProduct> purchases);
+		
+		/**
+		 * Event fired when the market has accepted or rejected the restore
+		 * request.  This is not the end of the restore: the market gives no
+		 * signal for that, and chunks can arrive before or after this event.
+		 * @param responseCode {@link BillingResponseCode#OK} if the market
+		 *     accepted the request
+		 */
+		void onRestoreTransactionsAccepted(int responseCode);
+	}
 
 }
@@ -0,0 +1,140 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import java.util.HashMap;
+
+/**
+ * In-memory index of which products the user owns, built from verified
+ * purchases. A product is owned while at least one of its orders is in the
+ * PURCHASED state; REFUNDED and CANCELED orders release it.
+ * <p>
+ * Ownership is kept as a bitset indexed by {@link ProductIds} handle. Reads
+ * never lock: writers publish a new copy of the bitset whenever a bit
+ * changes, which is rare compared to how often games check entitlements.
+ */
+public class EntitlementIndex implements PurchaseLedger.LedgerListener {
+
+	/**
+	 * Owned products, bit n set when the product with handle n is owned
+	 */
+	private volatile long[] mOwned = new long[1];
+
+	/**
+	 * Number of PURCHASED orders per product handle
+	 */
+	private int[] mPurchasedOrders = new int[64];
+
+	/**
+	 * Latest known state of each order, as a PurchaseState ordinal
+	 */
+	private final HashMap<String, Integer> mOrderStates = new HashMap<String, Integer>();
+
+	/**
+	 * True when the user owns the product
+	 *
+	 * @param productId
+	 * @return
+	 */
+	public boolean isOwned(String productId) {
+		return isOwned(ProductIds.find(productId));
+	}
+
+	/**
+	 * True when the user owns the product with this {@link ProductIds} handle
+	 *
+	 * @param productHandle
+	 * @return
+	 */
+	public boolean isOwned(int productHandle) {
+		if (productHandle < 0) {
+			return false;
+		}
+		long[] owned = mOwned;
+		int word = productHandle >>> 6;
+		return word < owned.length && (owned[word] & (1L << productHandle)) != 0;
+	}
+
+	/**
+	 * Records a verified purchase. Unverified purchases are ignored.
+	 *
+	 * @param product
+	 */
+	public void record(PaidProduct product) {
+		if (product == null || !product.isVerified() || product.purchaseState == null) {
+			return;
+		}
+		String productId = product.getProductID();
+		String orderKey = product.orderId != null ? product.orderId : productId;
+		record(orderKey, productId, product.purchaseState);
+	}
+
+	/**
+	 * Records the latest state of an order
+	 *
+	 * @param orderId
+	 * @param productId
+	 * @param state
+	 */
+	public synchronized void record(String orderId, String productId, PurchaseState state) {
+		int handle = ProductIds.handle(productId);
+		if (handle < 0 || orderId == null) {
+			return;
+		}
+		if (handle >= mPurchasedOrders.length) {
+			int[] grown = new int[Math.max(handle + 1, mPurchasedOrders.length * 2)];
+			System.arraycopy(mPurchasedOrders, 0, grown, 0, mPurchasedOrders.length);
+			mPurchasedOrders = grown;
+		}
+
+		boolean purchased = state == PurchaseState.PURCHASED;
+		Integer previous = mOrderStates.put(orderId, Integer.valueOf(state.ordinal()));
+		boolean wasPurchased = previous != null && previous.intValue() == PurchaseState.PURCHASED.ordinal();
+		if (purchased == wasPurchased) {
+			return;
+		}
+		mPurchasedOrders[handle] += purchased ? 1 : -1;
+		setOwned(handle, mPurchasedOrders[handle] > 0);
+	}
+
+	/**
+	 * Forgets every order
+	 */
+	public synchronized void clear() {
+		mOrderStates.clear();
+		mPurchasedOrders = new int[64];
+		mOwned = new long[1];
+	}
+
+	public void onLedgerRecord(PaidProduct product) {
+		record(product);
+	}
+
+	private void setOwned(int handle, boolean owned) {
+		if (isOwned(handle) == owned) {
+			return;
+		}
+		long[] current = mOwned;
+		int word = handle >>> 6;
+		long[] next = new long[Math.max(current.length, word + 1)];
+		System.arraycopy(current, 0, next, 0, current.length);
+		if (owned) {
+			next[word] |= 1L << handle;
+		} else {
+			next[word] &= ~(1L << handle);
+		}
+		mOwned = next;
+	}
+}
@@ -0,0 +1,546 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.json.JSONException;
+
+import com.gummagames.payments.PaidProduct.MarketJson;
+
+/**
+ * Single pass reader for the signed order JSON sent by Google Android Market.
+ * Fills {@link PaidProduct} fields straight from the text and skips anything
+ * we don't use without building intermediate objects.
+ */
+final class MarketOrderReader {
+
+	/**
+	 * Orders arrays longer than this many characters are scanned for order
+	 * boundaries so they can be parsed in parallel
+	 */
+	static final int PARALLEL_MIN_CHARS = 32 * 1024;
+
+	/**
+	 * Minimum number of orders for which parallel parsing pays off
+	 */
+	static final int PARALLEL_MIN_ORDERS = 128;
+
+	/**
+	 * Cores to split a large orders array across. Tests raise it to cover the
+	 * parallel path on a single core machine.
+	 */
+	static int sCores = BillingExecutors.cpuPoolSize();
+
+	private final String mJson;
+	private final int mLength;
+	private int mPos;
+
+	/**
+	 * Bounds of the last string token read by {@link #readStringBounds()}
+	 */
+	private int mTokenStart;
+	private int mTokenEnd;
+	private boolean mTokenEscaped;
+
+	MarketOrderReader(String json) {
+		this(json, 0, json.length());
+	}
+
+	MarketOrderReader(String json, int start, int end) {
+		mJson = json;
+		mPos = start;
+		mLength = end;
+	}
+
+	/**
+	 * Reads every order in the "orders" array of a signed Market payload
+	 *
+	 * @param json
+	 * @param verified
+	 * @return
+	 * @throws JSONException if the payload is not well formed
+	 */
+	static ArrayList<PaidProduct> readOrders(String json, boolean verified) throws JSONException {
+		MarketOrderReader reader = new MarketOrderReader(json);
+		ArrayList<PaidProduct> prods = new ArrayList<PaidProduct>();
+
+		reader.beginObject();
+		for (boolean first = true; reader.hasNextMember(first); first = false) {
+			if (reader.nameIs(MarketJson.orders)) {
+				reader.readOrderArray(prods, verified);
+			} else {
+				reader.skipValue();
+			}
+		}
+		return prods;
+	}
+
+	/**
+	 * Reads the top level "nonce" of a signed Market payload, skipping
+	 * everything else
+	 *
+	 * @param json
+	 * @return {@link NonceRegistry#NO_NONCE} if the payload has no nonce
+	 * @throws JSONException if the payload is not well formed
+	 */
+	static long readNonce(String json) throws JSONException {
+		MarketOrderReader reader = new MarketOrderReader(json);
+		reader.beginObject();
+		for (boolean first = true; reader.hasNextMember(first); first = false) {
+			if (reader.nameIs(MarketJson.nonce)) {
+				return reader.readLong();
+			}
+			reader.skipValue();
+		}
+		return NonceRegistry.NO_NONCE;
+	}
+
+	/**
+	 * Reads a single order object into product
+	 *
+	 * @param json
+	 * @param product
+	 * @return false if the order is missing its product ID or purchase state
+	 * @throws JSONException if the order is not well formed
+	 */
+	static boolean readOrder(String json, PaidProduct product) throws JSONException {
+		return new MarketOrderReader(json).readOrder(product);
+	}
+
+	private void readOrderArray(ArrayList<PaidProduct> prods, boolean verified) throws JSONException {
+		if (peek() == 'n') {
+			skipValue();
+			return;
+		}
+		expect('[');
+		if (peek() == ']') {
+			mPos++;
+			return;
+		}
+		if (mLength - mPos >= PARALLEL_MIN_CHARS && sCores > 1
+				&& !BillingExecutors.isCpuPoolThread()) {
+			int[] bounds = scanOrderBounds();
+			if (bounds[0] >= PARALLEL_MIN_ORDERS) {
+				readOrdersInParallel(bounds, prods, verified);
+				return;
+			}
+		}
+		do {
+			PaidProduct pp = new PaidProduct();
+			if (readOrder(pp)) {
+				pp.setVerified(verified);
+				prods.add(pp);
+			}
+		} while (nextElement(']'));
+	}
+
+	/**
+	 * Finds the start and end of every order object in the array, without
+	 * parsing them. The reader is left after the closing ']' of the array.
+	 *
+	 * @return count of orders in element 0, followed by start/end pairs
+	 */
+	private int[] scanOrderBounds() throws JSONException {
+		int[] bounds = new int[65];
+		int count = 0;
+		int depth = 0;
+		int start = -1;
+		boolean expectValue = true;
+
+		while (true) {
+			char c = peek();
+			if (depth == 0) {
+				if (c == ']' && !expectValue) {
+					mPos++;
+					break;
+				}
+				if (c == ',' && !expectValue) {
+					expectValue = true;
+					mPos++;
+					continue;
+				}
+				if (c != '{' || !expectValue) {
+					throw syntaxError("Expected an order object");
+				}
+				start = mPos;
+				expectValue = false;
+			}
+
+			if (c == '"') {
+				readStringBounds();
+				continue;
+			}
+			mPos++;
+			if (c == '{' || c == '[') {
+				depth++;
+			} else if (c == '}' || c == ']') {
+				depth--;
+				if (depth == 0) {
+					if (count * 2 + 3 > bounds.length) {
+						int[] grown = new int[bounds.length * 2 - 1];
+						System.arraycopy(bounds, 0, grown, 0, bounds.length);
+						bounds = grown;
+					}
+					bounds[count * 2 + 1] = start;
+					bounds[count * 2 + 2] = mPos;
+					count++;
+				}
+			}
+		}
+		bounds[0] = count;
+		return bounds;
+	}
+
+	/**
+	 * Parses orders found by {@link #scanOrderBounds()} on the CPU pool, one
+	 * contiguous range of orders per task, and merges them back in order
+	 */
+	private void readOrdersInParallel(final int[] bounds, ArrayList<PaidProduct> prods, final boolean verified)
+			throws JSONException {
+		final int count = bounds[0];
+		int chunks = Math.min(count, sCores * 2);
+
+		ArrayList<Callable<ArrayList<PaidProduct>>> tasks = new ArrayList<Callable<ArrayList<PaidProduct>>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int first = (int) ((long) count * c / chunks);
+			final int last = (int) ((long) count * (c + 1) / chunks);
+			tasks.add(new Callable<ArrayList<PaidProduct>>() {
+				public ArrayList<PaidProduct> call() throws JSONException {
+					ArrayList<PaidProduct> result = new ArrayList<PaidProduct>(last - first);
+					for (int i = first; i < last; i++) {
+						MarketOrderReader reader = new MarketOrderReader(mJson, bounds[i * 2 + 1], bounds[i * 2 + 2]);
+						PaidProduct pp = new PaidProduct();
+						if (reader.readOrder(pp)) {
+							pp.setVerified(verified);
+							result.add(pp);
+						}
+					}
+					return result;
+				}
+			});
+		}
+
+		prods.ensureCapacity(prods.size() + count);
+		try {
+			for (Future<ArrayList<PaidProduct>> future : BillingExecutors.cpuPool().invokeAll(tasks)) {
+				prods.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new JSONException("Interrupted while parsing orders");
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof JSONException) {
+				throw (JSONException) e.getCause();
+			}
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Reads the order object at the current position
+	 */
+	boolean readOrder(PaidProduct pp) throws JSONException {
+		boolean hasState = false;
+		boolean hasProduct = false;
+
+		beginObject();
+		for (boolean first = true; hasNextMember(first); first = false) {
+			if (nameIs(MarketJson.purchaseState)) {
+				pp.purchaseState = PurchaseState.valueOf((int) readLong());
+				hasState = true;
+			} else if (nameIs(MarketJson.productId)) {
+				pp.setProductID(readString());
+				hasProduct = pp.getProductID() != null;
+			} else if (nameIs(MarketJson.purchaseTime)) {
+				pp.purchaseTime = readLong();
+			} else if (nameIs(MarketJson.notificationId)) {
+				pp.notificationID = readString();
+			} else if (nameIs(MarketJson.orderId)) {
+				pp.orderId = readString();
+			} else if (nameIs(MarketJson.developerPayload)) {
+				pp.setProductExtraData(readString());
+			} else {
+				skipValue();
+			}
+		}
+		return hasState && hasProduct;
+	}
+
+	// ---------------------------------------------------------------------
+	// Tokenizer
+
+	private JSONException syntaxError(String message) {
+		return new JSONException(message + " at character " + mPos);
+	}
+
+	/**
+	 * Next non-whitespace character, without consuming it
+	 */
+	private char peek() throws JSONException {
+		while (mPos < mLength) {
+			char c = mJson.charAt(mPos);
+			if (c != ' ' && c != '\t' && c != '\n' && c != '\r') {
+				return c;
+			}
+			mPos++;
+		}
+		throw syntaxError("Unexpected end of input");
+	}
+
+	private void expect(char c) throws JSONException {
+		if (peek() != c) {
+			throw syntaxError("Expected '" + c + "'");
+		}
+		mPos++;
+	}
+
+	private void beginObject() throws JSONException {
+		expect('{');
+	}
+
+	/**
+	 * Advances to the next member name of the current object
+	 *
+	 * @return false when the object has ended
+	 */
+	private boolean hasNextMember(boolean first) throws JSONException {
+		char c = peek();
+		if (c == '}') {
+			mPos++;
+			return false;
+		}
+		if (!first) {
+			expect(',');
+		}
+		readStringBounds();
+		expect(':');
+		return true;
+	}
+
+	/**
+	 * Moves past the separator between array elements
+	 *
+	 * @return false when the array has ended
+	 */
+	private boolean nextElement(char close) throws JSONException {
+		char c = peek();
+		mPos++;
+		if (c == ',') {
+			return true;
+		}
+		if (c == close) {
+			return false;
+		}
+		throw syntaxError("Expected ',' or '" + close + "'");
+	}
+
+	/**
+	 * Compares the member name just read, without allocating a string
+	 */
+	private boolean nameIs(String name) {
+		if (mTokenEscaped) {
+			return name.equals(decode(mTokenStart, mTokenEnd));
+		}
+		int len = mTokenEnd - mTokenStart;
+		return len == name.length() && mJson.regionMatches(mTokenStart, name, 0, len);
+	}
+
+	/**
+	 * Records the bounds of the string token at the current position
+	 */
+	private void readStringBounds() throws JSONException {
+		expect('"');
+		mTokenStart = mPos;
+		mTokenEscaped = false;
+		while (mPos < mLength) {
+			char c = mJson.charAt(mPos);
+			if (c == '"') {
+				mTokenEnd = mPos;
+				mPos++;
+				return;
+			}
+			if (c == '\\') {
+				mTokenEscaped = true;
+				mPos++;
+			}
+			mPos++;
+		}
+		throw syntaxError("Unterminated string");
+	}
+
+	private String readString() throws JSONException {
+		char c = peek();
+		if (c == 'n') {
+			skipLiteral();
+			return null;
+		}
+		if (c != '"') {
+			// Market only sends strings here, but be as lenient as org.json
+			int start = mPos;
+			skipValue();
+			return mJson.substring(start, mPos).trim();
+		}
+		readStringBounds();
+		if (mTokenEscaped) {
+			return decode(mTokenStart, mTokenEnd);
+		}
+		return mJson.substring(mTokenStart, mTokenEnd);
+	}
+
+	private String decode(int start, int end) {
+		StringBuilder sb = new StringBuilder(end - start);
+		for (int i = start; i < end; i++) {
+			char c = mJson.charAt(i);
+			if (c != '\\' || i + 1 >= end) {
+				sb.append(c);
+				continue;
+			}
+			c = mJson.charAt(++i);
+			switch (c) {
+			case 'b':
+				sb.append('\b');
+				break;
+			case 'f':
+				sb.append('\f');
+				break;
+			case 'n':
+				sb.append('\n');
+				break;
+			case 'r':
+				sb.append('\r');
+				break;
+			case 't':
+				sb.append('\t');
+				break;
+			case 'u':
+				if (i + 4 < end) {
+					try {
+						sb.append((char) Integer.parseInt(mJson.substring(i + 1, i + 5), 16));
+						i += 4;
+					} catch (NumberFormatException e) {
+						sb.append(c);
+					}
+				}
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Reads an integral number, accepting a quoted number as org.json does
+	 */
+	private long readLong() throws JSONException {
+		char c = peek();
+		if (c == '"') {
+			readStringBounds();
+			try {
+				return Long.parseLong(mJson.substring(mTokenStart, mTokenEnd).trim());
+			} catch (NumberFormatException e) {
+				throw syntaxError("Expected a number");
+			}
+		}
+
+		int start = mPos;
+		boolean negative = false;
+		if (c == '-') {
+			negative = true;
+			mPos++;
+		}
+		long value = 0;
+		int digits = 0;
+		while (mPos < mLength) {
+			c = mJson.charAt(mPos);
+			if (c < '0' || c > '9') {
+				break;
+			}
+			value = value * 10 + (c - '0');
+			digits++;
+			mPos++;
+		}
+		if (mPos < mLength && (c == '.' || c == 'e' || c == 'E')) {
+			// Rare: fall back to the slow path for fractions and exponents
+			mPos = start;
+			skipValue();
+			try {
+				return (long) Double.parseDouble(mJson.substring(start, mPos));
+			} catch (NumberFormatException e) {
+				throw syntaxError("Expected a number");
+			}
+		}
+		if (digits == 0) {
+			throw syntaxError("Expected a number");
+		}
+		return negative ? -value : value;
+	}
+
+	private void skipLiteral() throws JSONException {
+		int start = mPos;
+		while (mPos < mLength) {
+			char c = mJson.charAt(mPos);
+			if (c == ',' || c == '}' || c == ']' || c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+				break;
+			}
+			mPos++;
+		}
+		if (mPos == start) {
+			throw syntaxError("Expected a value");
+		}
+	}
+
+	/**
+	 * Skips the value at the current position, including nested objects and
+	 * arrays
+	 */
+	void skipValue() throws JSONException {
+		int depth = 0;
+		do {
+			char c = peek();
+			switch (c) {
+			case '{':
+			case '[':
+				depth++;
+				mPos++;
+				break;
+			case '}':
+			case ']':
+				depth--;
+				mPos++;
+				break;
+			case ',':
+			case ':':
+				if (depth == 0) {
+					throw syntaxError("Expected a value");
+				}
+				mPos++;
+				break;
+			case '"':
+				readStringBounds();
+				break;
+			default:
+				skipLiteral();
+			}
+		} while (depth > 0);
+		if (depth < 0) {
+			throw syntaxError("Unbalanced brackets");
+		}
+	}
+}
@@ -0,0 +1,145 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import android.os.SystemClock;
+
+/**
+ * Nonces sent to the market that have not yet expired.
+ * Responses carrying a nonce that is not in the registry are replays or
+ * forgeries and can be rejected before any signature or JSON work.
+ * <p>
+ * Lookups are a single concurrent hash probe. Memory is capped: once the
+ * registry is full, expired nonces are purged and then the oldest are dropped.
+ */
+final class NonceRegistry {
+
+	/**
+	 * Value never handed out as a nonce, used for "no nonce"
+	 */
+	static final long NO_NONCE = 0L;
+
+	static final long DEFAULT_TTL_MILLIS = 20 * 60 * 1000L;
+	static final int DEFAULT_MAX_NONCES = 256;
+
+	/**
+	 * One generator per thread so generating never contends on a lock
+	 */
+	private static final ThreadLocal<SecureRandom> sRandom = new ThreadLocal<SecureRandom>() {
+		@Override
+		protected SecureRandom initialValue() {
+			return new SecureRandom();
+		}
+	};
+
+	private final long mTtlMillis;
+	private final int mMaxNonces;
+
+	/**
+	 * Nonce to expiry time, in {@link SystemClock#elapsedRealtime()} millis
+	 */
+	private final ConcurrentHashMap<Long, Long> mExpiry = new ConcurrentHashMap<Long, Long>();
+
+	/**
+	 * Nonces in the order they were issued, for dropping the oldest
+	 */
+	private final ConcurrentLinkedQueue<Long> mOrder = new ConcurrentLinkedQueue<Long>();
+
+	NonceRegistry() {
+		this(DEFAULT_TTL_MILLIS, DEFAULT_MAX_NONCES);
+	}
+
+	NonceRegistry(long ttlMillis, int maxNonces) {
+		mTtlMillis = ttlMillis;
+		mMaxNonces = maxNonces;
+	}
+
+	/**
+	 * Generates and registers a new nonce
+	 *
+	 * @return
+	 */
+	long generate() {
+		SecureRandom random = sRandom.get();
+		long nonce;
+		do {
+			nonce = random.nextLong();
+		} while (nonce == NO_NONCE);
+
+		Long key = Long.valueOf(nonce);
+		mExpiry.put(key, Long.valueOf(SystemClock.elapsedRealtime() + mTtlMillis));
+		mOrder.add(key);
+		if (mExpiry.size() > mMaxNonces) {
+			trim();
+		}
+		return nonce;
+	}
+
+	/**
+	 * True when nonce was issued by this registry and has not expired
+	 *
+	 * @param nonce
+	 * @return
+	 */
+	boolean isKnown(long nonce) {
+		if (nonce == NO_NONCE) {
+			return false;
+		}
+		Long expiry = mExpiry.get(Long.valueOf(nonce));
+		if (expiry == null) {
+			return false;
+		}
+		if (SystemClock.elapsedRealtime() > expiry.longValue()) {
+			mExpiry.remove(Long.valueOf(nonce));
+			return false;
+		}
+		return true;
+	}
+
+	void remove(long nonce) {
+		Long key = Long.valueOf(nonce);
+		if (mExpiry.remove(key) != null) {
+			mOrder.remove(key);
+		}
+	}
+
+	int size() {
+		return mExpiry.size();
+	}
+
+	/**
+	 * Drops expired nonces, then the oldest, until the registry fits
+	 */
+	private void trim() {
+		long now = SystemClock.elapsedRealtime();
+		Long nonce;
+		int checked = mOrder.size();
+		while (checked-- > 0 && (nonce = mOrder.poll()) != null) {
+			Long expiry = mExpiry.get(nonce);
+			if (expiry == null || now > expiry.longValue()) {
+				mExpiry.remove(nonce);
+			} else {
+				mOrder.add(nonce);
+			}
+		}
+		while (mExpiry.size() > mMaxNonces && (nonce = mOrder.poll()) != null) {
+			mExpiry.remove(nonce);
+		}
+	}
+}
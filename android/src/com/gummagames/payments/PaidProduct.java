@@ -16,12 +16,10 @@ package com.gummagames.payments;
 
 import java.util.ArrayList;
 
-import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
 import android.text.TextUtils;
-import android.util.Log;
 
 /**
  * Basic Paid Product implementation
@@ -64,38 +62,48 @@ public class PaidProduct implements IPaidProduct {
 			return null;
 		}
 
-		JSONObject jobj;
-		JSONArray jOrders;
-		int tranCount = 0;
-
 		try {
-			jobj = new JSONObject(jsonMarketData);
-			jOrders = jobj.optJSONArray(MarketJson.orders);
-			if (jOrders != null) {
-				tranCount = jOrders.length();
-			}
+			return MarketOrderReader.readOrders(jsonMarketData, verified);
 		} catch (JSONException e) {
 			e.printStackTrace();
 			return null;
 		}
+	}
 
-		ArrayList<PaidProduct> prods = new ArrayList<PaidProduct>();
-
+	/**
+	 * Checks that a signed market payload answers a request we sent, by
+	 * matching its nonce against {@link Util#isNonceKnown(long)}. Cheap
+	 * enough to run before signature verification.
+	 * 
+	 * @param jsonMarketData
+	 * @return
+	 */
+	static public boolean hasKnownNonce(String jsonMarketData) {
+		if (TextUtils.isEmpty(jsonMarketData)) {
+			return false;
+		}
 		try {
-			for (int i = 0; i < tranCount; i++) {
-				JSONObject jord = jOrders.getJSONObject(i);
-				PaidProduct pp = new PaidProduct();
-				if(pp.loadMarketJson(jord)){
-					pp.setVerified(verified);
-					prods.add(pp);
-				}
-			}
+			return Util.isNonceKnown(MarketOrderReader.readNonce(jsonMarketData));
 		} catch (JSONException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			return false;
 		}
+	}
 
-		return prods;
+	/**
+	 * Nonce of a signed market payload, without parsing the orders
+	 * 
+	 * @param jsonMarketData
+	 * @return the nonce, or 0 if the payload has none or is malformed
+	 */
+	static public long readNonce(String jsonMarketData) {
+		if (TextUtils.isEmpty(jsonMarketData)) {
+			return 0;
+		}
+		try {
+			return MarketOrderReader.readNonce(jsonMarketData);
+		} catch (JSONException e) {
+			return 0;
+		}
 	}
 
 	/**
@@ -109,8 +117,7 @@ public class PaidProduct implements IPaidProduct {
 
 	public boolean loadMarketJson(String json) {
 		try {
-			JSONObject jdata = new JSONObject(json);
-			return loadMarketJson(jdata);
+			return MarketOrderReader.readOrder(json, this);
 		} catch (JSONException e) {
 			e.printStackTrace();
 			return false;
@@ -123,21 +130,16 @@ public class PaidProduct implements IPaidProduct {
 	 */
 	public boolean loadMarketJson(JSONObject json) {
 		int resp;
-		boolean debug = true;
 		try {
 			resp = json.getInt(MarketJson.purchaseState);
 			this.purchaseState = PurchaseState.valueOf(resp);
 			this.setProductID(json.getString(MarketJson.productId));
-			String pkg = json.optString(MarketJson.packageName); //whats this for?
 			
 			//this.setProductName(json.optString(MarketJson.packageName))/
 			this.purchaseTime = json.optLong(MarketJson.purchaseTime);
-			this.notificationID = json.optString(MarketJson.notificationId);
-			
-			if(debug){
-				Log.d("JSON", json.toString(4));
-			}
-			
+			this.notificationID = json.optString(MarketJson.notificationId, null);
+			this.orderId = json.optString(MarketJson.orderId, null);
+			this.setProductExtraData(json.optString(MarketJson.developerPayload, null));
 			
 		} catch (JSONException e) {
 			e.printStackTrace();
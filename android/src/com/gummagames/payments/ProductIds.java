@@ -0,0 +1,119 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Intern table for product IDs. Each distinct product ID gets one canonical
+ * String instance and a small integer handle, so the rest of the billing
+ * system can compare and index products without hashing strings.
+ * Lookups are lock-free; only the first sighting of a product takes a lock.
+ */
+public final class ProductIds {
+
+	private ProductIds() {
+	}
+
+	private static final ConcurrentHashMap<String, Integer> sHandles = new ConcurrentHashMap<String, Integer>();
+
+	/**
+	 * Canonical product ID strings, indexed by handle
+	 */
+	private static volatile String[] sNames = new String[32];
+
+	private static int sCount = 0;
+
+	/**
+	 * Returns the handle for a product ID, assigning one on first use
+	 *
+	 * @param productId
+	 * @return -1 if productId is null
+	 */
+	public static int handle(String productId) {
+		if (productId == null) {
+			return -1;
+		}
+		Integer handle = sHandles.get(productId);
+		if (handle != null) {
+			return handle.intValue();
+		}
+		synchronized (ProductIds.class) {
+			handle = sHandles.get(productId);
+			if (handle != null) {
+				return handle.intValue();
+			}
+			String[] names = sNames;
+			if (sCount == names.length) {
+				String[] grown = new String[names.length * 2];
+				System.arraycopy(names, 0, grown, 0, names.length);
+				names = grown;
+			}
+			int assigned = sCount++;
+			names[assigned] = productId;
+			sNames = names;
+			sHandles.put(productId, Integer.valueOf(assigned));
+			return assigned;
+		}
+	}
+
+	/**
+	 * Returns the handle for a product ID without assigning one
+	 *
+	 * @param productId
+	 * @return -1 if the product has never been seen
+	 */
+	public static int find(String productId) {
+		if (productId == null) {
+			return -1;
+		}
+		Integer handle = sHandles.get(productId);
+		return handle == null ? -1 : handle.intValue();
+	}
+
+	/**
+	 * The canonical instance of a product ID
+	 *
+	 * @param productId
+	 * @return
+	 */
+	public static String intern(String productId) {
+		int handle = handle(productId);
+		return handle < 0 ? null : sNames[handle];
+	}
+
+	/**
+	 * The product ID for a handle
+	 *
+	 * @param handle
+	 * @return
+	 */
+	public static String name(int handle) {
+		String[] names = sNames;
+		if (handle < 0 || handle >= names.length) {
+			return null;
+		}
+		return names[handle];
+	}
+
+	/**
+	 * Number of handles assigned so far
+	 *
+	 * @return
+	 */
+	public static int count() {
+		return sHandles.size();
+	}
+}
@@ -0,0 +1,203 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import java.util.List;
+
+import com.gummagames.payments.BillingProvider.BillingResponseListener;
+import com.gummagames.payments.BillingProvider.PurchaseEventListener;
+
+/**
+ * Compact, reusable record of a purchase event delivered to listeners.
+ * Events are taken from a small pool with {@link #obtain()} and returned
+ * with {@link #recycle()} once every listener has returned, so listeners
+ * must copy any fields they want to keep.
+ *
+ * @see PurchaseEventListener
+ */
+public final class PurchaseEvent {
+
+	private static final int MAX_POOL_SIZE = 16;
+	private static final Object sPoolSync = new Object();
+	private static PurchaseEvent sPool;
+	private static int sPoolSize = 0;
+
+	private PurchaseEvent next;
+
+	/**
+	 * Response code for this event. For purchase state changes this is the
+	 * ordinal of the {@link PurchaseState}, so {@link BillingResponseCode#OK}
+	 * means purchased.
+	 */
+	public int responseCode;
+
+	/**
+	 * Ordinal of the {@link PurchaseState}, or -1 when the event is not a
+	 * purchase state change
+	 */
+	public int purchaseState = -1;
+
+	/**
+	 * Interned product ID, see {@link ProductIds}
+	 */
+	public String productId;
+
+	/**
+	 * Handle of the product ID from {@link ProductIds#handle(String)}
+	 */
+	public int productHandle = -1;
+
+	public String orderId;
+	public String notificationId;
+	public String developerPayload;
+	public long purchaseTime;
+
+	private PurchaseEvent() {
+	}
+
+	/**
+	 * Takes an event from the pool, or creates one if the pool is empty
+	 *
+	 * @return
+	 */
+	public static PurchaseEvent obtain() {
+		synchronized (sPoolSync) {
+			if (sPool != null) {
+				PurchaseEvent event = sPool;
+				sPool = event.next;
+				event.next = null;
+				sPoolSize--;
+				return event;
+			}
+		}
+		return new PurchaseEvent();
+	}
+
+	/**
+	 * Takes an event from the pool and fills it for the given product
+	 *
+	 * @param productId
+	 * @param developerPayload
+	 * @param responseCode
+	 * @return
+	 */
+	public static PurchaseEvent obtain(String productId, String developerPayload, int responseCode) {
+		PurchaseEvent event = obtain();
+		event.setProductId(productId);
+		event.developerPayload = developerPayload;
+		event.responseCode = responseCode;
+		return event;
+	}
+
+	/**
+	 * Takes an event from the pool and fills it from a parsed order
+	 *
+	 * @param product
+	 * @return
+	 */
+	public static PurchaseEvent obtain(PaidProduct product) {
+		PurchaseEvent event = obtain();
+		event.setProductId(product.getProductID());
+		event.developerPayload = product.getProductExtraData();
+		event.orderId = product.orderId;
+		event.notificationId = product.notificationID;
+		event.purchaseTime = product.purchaseTime;
+		if (product.purchaseState != null) {
+			event.purchaseState = product.purchaseState.ordinal();
+			event.responseCode = event.purchaseState;
+		}
+		return event;
+	}
+
+	/**
+	 * Returns this event to the pool. The event must not be used afterwards.
+	 */
+	public void recycle() {
+		productId = null;
+		productHandle = -1;
+		orderId = null;
+		notificationId = null;
+		developerPayload = null;
+		purchaseTime = 0;
+		purchaseState = -1;
+		responseCode = 0;
+		synchronized (sPoolSync) {
+			if (sPoolSize < MAX_POOL_SIZE) {
+				next = sPool;
+				sPool = this;
+				sPoolSize++;
+			}
+		}
+	}
+
+	public void setProductId(String productId) {
+		this.productHandle = ProductIds.handle(productId);
+		this.productId = ProductIds.name(productHandle);
+	}
+
+	/**
+	 * Purchase state of this event
+	 *
+	 * @return null when the event is not a purchase state change
+	 */
+	public PurchaseState getPurchaseState() {
+		return purchaseState < 0 ? null : PurchaseState.valueOf(purchaseState);
+	}
+
+	public boolean isSuccess() {
+		return responseCode == BillingResponseCode.OK;
+	}
+
+	/**
+	 * Copies this event into a new PaidProduct, for listeners that only
+	 * understand the PaidProduct callbacks
+	 *
+	 * @return
+	 */
+	public PaidProduct toPaidProduct() {
+		PaidProduct pp = new PaidProduct(productId, developerPayload);
+		pp.orderId = orderId;
+		pp.notificationID = notificationId;
+		pp.purchaseTime = purchaseTime;
+		pp.purchaseState = getPurchaseState();
+		return pp;
+	}
+
+	/**
+	 * Delivers this event to each listener. {@link PurchaseEventListener}s
+	 * receive the event itself; other listeners share a single PaidProduct
+	 * copy, created only if one of them needs it.
+	 *
+	 * @param listeners
+	 */
+	public void deliverTo(List<BillingResponseListener> listeners) {
+		PaidProduct pp = null;
+		for (int i = 0, n = listeners.size(); i < n; i++) {
+			BillingResponseListener listener = listeners.get(i);
+			if (listener instanceof PurchaseEventListener) {
+				((PurchaseEventListener) listener).onPurchaseEvent(this);
+				continue;
+			}
+			if (pp == null) {
+				pp = toPaidProduct();
+			}
+			if (isSuccess()) {
+				listener.onPurchaseSuccess(pp, responseCode);
+			} else {
+				listener.onPurchaseFailed(pp, responseCode);
+			}
+		}
+	}
+}
@@ -0,0 +1,442 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+import android.util.Log;
+
+/**
+ * Durable, append-only record of verified purchases.
+ * <p>
+ * Each record is written as [length][crc32][payload]. Appends are queued and
+ * written by a single writer thread that syncs the file once per batch, so
+ * a burst of purchases costs one fsync. On open the file is read
+ * sequentially and anything after the first torn or corrupt record is
+ * truncated, which makes a crash mid-write safe. When the file holds many more
+ * records than live orders, it is compacted in the background by rewriting
+ * the live set to a temporary file and renaming it into place.
+ */
+public class PurchaseLedger {
+
+	public static final String LOGTAG = "GUMMAPAYMENTS";
+
+	static final String FILE_NAME = "purchases.ledger";
+
+	private static final int RECORD_VERSION = 1;
+
+	/**
+	 * Records bigger than this are treated as corruption
+	 */
+	private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+	/**
+	 * Compact once the file holds this many times more records than live orders
+	 */
+	private static final int COMPACT_RATIO = 2;
+	private static final int COMPACT_MIN_RECORDS = 256;
+
+	private final File mFile;
+
+	/**
+	 * Latest record for each order, in first-seen order
+	 */
+	private final LinkedHashMap<String, PaidProduct> mOrders = new LinkedHashMap<String, PaidProduct>();
+
+	/**
+	 * Records appended but not yet written by the writer thread
+	 */
+	private final ArrayList<PaidProduct> mQueue = new ArrayList<PaidProduct>();
+
+	private Thread mWriter = null;
+	private int mRecordCount = 0;
+	/**
+	 * Length of the file up to the end of the last complete record
+	 */
+	private long mValidLength = 0;
+	private boolean mClosed = false;
+
+	/**
+	 * Listener notified as records are loaded and appended
+	 */
+	public interface LedgerListener {
+		void onLedgerRecord(PaidProduct product);
+	}
+
+	private LedgerListener mListener = null;
+
+	private PurchaseLedger(File file) {
+		mFile = file;
+	}
+
+	/**
+	 * Opens the ledger file, replaying every valid record
+	 *
+	 * @param dir directory holding the ledger, usually Context.getFilesDir()
+	 * @return
+	 */
+	public static PurchaseLedger open(File dir) {
+		return open(dir, null);
+	}
+
+	/**
+	 * Opens the ledger file, replaying every valid record to listener
+	 *
+	 * @param dir directory holding the ledger, usually Context.getFilesDir()
+	 * @param listener notified of every live record, may be null
+	 * @return
+	 */
+	public static PurchaseLedger open(File dir, LedgerListener listener) {
+		PurchaseLedger ledger = new PurchaseLedger(new File(dir, FILE_NAME));
+		ledger.mListener = listener;
+		ledger.load();
+		return ledger;
+	}
+
+	/**
+	 * Orders currently held in the ledger, latest state of each
+	 *
+	 * @return
+	 */
+	public synchronized ArrayList<PaidProduct> getPurchases() {
+		return new ArrayList<PaidProduct>(mOrders.values());
+	}
+
+	/**
+	 * Latest record for an order
+	 *
+	 * @param orderId
+	 * @return null if the order is unknown
+	 */
+	public synchronized PaidProduct getOrder(String orderId) {
+		return mOrders.get(orderId);
+	}
+
+	public synchronized int size() {
+		return mOrders.size();
+	}
+
+	/**
+	 * Queues a verified purchase to be written. Unverified purchases and
+	 * purchases without an order ID are ignored.
+	 *
+	 * @param product
+	 */
+	public void append(PaidProduct product) {
+		if (product == null || !product.isVerified() || product.orderId == null) {
+			return;
+		}
+		LedgerListener listener;
+		synchronized (this) {
+			if (mClosed) {
+				return;
+			}
+			PaidProduct previous = mOrders.get(product.orderId);
+			if (previous != null && previous.purchaseState == product.purchaseState
+					&& previous.purchaseTime == product.purchaseTime) {
+				// Redelivery of a record we already hold
+				return;
+			}
+			mOrders.put(product.orderId, product);
+			mQueue.add(product);
+			startWriter();
+			listener = mListener;
+		}
+		if (listener != null) {
+			listener.onLedgerRecord(product);
+		}
+	}
+
+	/**
+	 * Writes any queued records and stops the writer thread
+	 */
+	public void close() {
+		Thread writer;
+		synchronized (this) {
+			mClosed = true;
+			writer = mWriter;
+			notifyAll();
+		}
+		if (writer != null) {
+			try {
+				writer.join();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	private void startWriter() {
+		if (mWriter != null) {
+			notifyAll();
+			return;
+		}
+		mWriter = new Thread(new Runnable() {
+			public void run() {
+				writeLoop();
+			}
+		}, "billing-ledger");
+		mWriter.setDaemon(true);
+		mWriter.start();
+	}
+
+	/**
+	 * Group commit loop: drains whatever has been queued since the last sync
+	 * and writes it with a single fsync
+	 */
+	private void writeLoop() {
+		ArrayList<PaidProduct> batch = new ArrayList<PaidProduct>();
+		while (true) {
+			boolean compact;
+			synchronized (this) {
+				while (mQueue.isEmpty() && !mClosed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						mClosed = true;
+					}
+				}
+				if (mQueue.isEmpty()) {
+					mWriter = null;
+					return;
+				}
+				batch.addAll(mQueue);
+				mQueue.clear();
+			}
+
+			try {
+				writeBatch(batch);
+			} catch (IOException e) {
+				Log.e(LOGTAG, "Could not write purchase ledger", e);
+				// Drop any partial write so later appends stay readable
+				truncate(mValidLength);
+			}
+
+			synchronized (this) {
+				mRecordCount += batch.size();
+				compact = mRecordCount >= COMPACT_MIN_RECORDS && mRecordCount > mOrders.size() * COMPACT_RATIO;
+			}
+			batch.clear();
+
+			if (compact) {
+				try {
+					compact();
+				} catch (IOException e) {
+					Log.e(LOGTAG, "Could not compact purchase ledger", e);
+				}
+			}
+		}
+	}
+
+	private void writeBatch(ArrayList<PaidProduct> batch) throws IOException {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(batch.size() * 128);
+		for (PaidProduct product : batch) {
+			writeRecord(buffer, product);
+		}
+		FileOutputStream out = new FileOutputStream(mFile, true);
+		try {
+			out.write(buffer.toByteArray());
+			out.flush();
+			out.getFD().sync();
+			mValidLength += buffer.size();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Rewrites the live orders to a new file and renames it over the ledger
+	 */
+	private void compact() throws IOException {
+		ArrayList<PaidProduct> live;
+		synchronized (this) {
+			live = new ArrayList<PaidProduct>(mOrders.values());
+		}
+
+		File tmp = new File(mFile.getPath() + ".tmp");
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream(live.size() * 128);
+		for (PaidProduct product : live) {
+			writeRecord(buffer, product);
+		}
+		FileOutputStream out = new FileOutputStream(tmp);
+		try {
+			out.write(buffer.toByteArray());
+			out.flush();
+			out.getFD().sync();
+		} finally {
+			out.close();
+		}
+
+		synchronized (this) {
+			// Only the writer thread appends, so nothing was written since the snapshot
+			if (!tmp.renameTo(mFile)) {
+				tmp.delete();
+				throw new IOException("Could not replace " + mFile);
+			}
+			mRecordCount = live.size();
+			mValidLength = buffer.size();
+		}
+	}
+
+	private static void writeRecord(ByteArrayOutputStream buffer, PaidProduct product) throws IOException {
+		ByteArrayOutputStream payload = new ByteArrayOutputStream(128);
+		DataOutputStream data = new DataOutputStream(payload);
+		data.writeByte(RECORD_VERSION);
+		writeString(data, product.orderId);
+		writeString(data, product.getProductID());
+		data.writeByte(product.purchaseState == null ? -1 : product.purchaseState.ordinal());
+		data.writeLong(product.purchaseTime);
+		writeString(data, product.notificationID);
+		writeString(data, product.getProductExtraData());
+		data.flush();
+
+		byte[] bytes = payload.toByteArray();
+		CRC32 crc = new CRC32();
+		crc.update(bytes);
+
+		DataOutputStream header = new DataOutputStream(buffer);
+		header.writeInt(bytes.length);
+		header.writeInt((int) crc.getValue());
+		header.write(bytes);
+		header.flush();
+	}
+
+	private static void writeString(DataOutputStream data, String value) throws IOException {
+		data.writeBoolean(value != null);
+		if (value != null) {
+			data.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		return data.readBoolean() ? data.readUTF() : null;
+	}
+
+	/**
+	 * Replays the file, stopping at the first torn or corrupt record and
+	 * truncating anything after it
+	 */
+	private synchronized void load() {
+		if (!mFile.exists()) {
+			return;
+		}
+		long valid = 0;
+		int records = 0;
+		byte[] bytes = new byte[256];
+		CRC32 crc = new CRC32();
+		DataInputStream in = null;
+		try {
+			in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile), 64 * 1024));
+			while (true) {
+				int length;
+				try {
+					length = in.readInt();
+				} catch (EOFException e) {
+					break;
+				}
+				int checksum = in.readInt();
+				if (length <= 0 || length > MAX_RECORD_SIZE) {
+					Log.w(LOGTAG, "Corrupt purchase ledger record at " + valid);
+					break;
+				}
+				if (bytes.length < length) {
+					bytes = new byte[Math.max(length, bytes.length * 2)];
+				}
+				in.readFully(bytes, 0, length);
+				crc.reset();
+				crc.update(bytes, 0, length);
+				if ((int) crc.getValue() != checksum) {
+					Log.w(LOGTAG, "Corrupt purchase ledger record at " + valid);
+					break;
+				}
+
+				PaidProduct product = decodeRecord(bytes, length);
+				if (product != null) {
+					mOrders.put(product.orderId, product);
+				}
+				records++;
+				valid += 8 + length;
+			}
+		} catch (EOFException e) {
+			Log.w(LOGTAG, "Torn purchase ledger record at " + valid);
+		} catch (IOException e) {
+			Log.e(LOGTAG, "Could not read purchase ledger", e);
+		} finally {
+			if (in != null) {
+				try {
+					in.close();
+				} catch (IOException e) {
+				}
+			}
+		}
+
+		mRecordCount = records;
+		mValidLength = valid;
+		if (valid < mFile.length()) {
+			truncate(valid);
+		}
+
+		if (mListener != null) {
+			for (PaidProduct product : mOrders.values()) {
+				mListener.onLedgerRecord(product);
+			}
+		}
+	}
+
+	private PaidProduct decodeRecord(byte[] bytes, int length) throws IOException {
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(bytes, 0, length));
+		int version = data.readByte();
+		if (version != RECORD_VERSION) {
+			return null;
+		}
+		PaidProduct product = new PaidProduct();
+		product.orderId = readString(data);
+		product.setProductID(ProductIds.intern(readString(data)));
+		int state = data.readByte();
+		product.purchaseState = state < 0 ? null : PurchaseState.valueOf(state);
+		product.purchaseTime = data.readLong();
+		product.notificationID = readString(data);
+		product.setProductExtraData(readString(data));
+		product.setVerified(true);
+		return product.orderId == null ? null : product;
+	}
+
+	private void truncate(long length) {
+		try {
+			RandomAccessFile file = new RandomAccessFile(mFile, "rw");
+			try {
+				file.setLength(length);
+				file.getFD().sync();
+			} finally {
+				file.close();
+			}
+		} catch (IOException e) {
+			Log.e(LOGTAG, "Could not truncate purchase ledger", e);
+		}
+	}
+}
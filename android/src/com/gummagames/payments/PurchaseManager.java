@@ -15,7 +15,12 @@
 
 package com.gummagames.payments;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
 import android.content.Context;
+import android.util.Log;
 
 import com.gummagames.payments.BillingProvider.BillingResponseListener;
 import com.gummagames.payments.googlebilling.MarketBillingService;
@@ -50,6 +55,16 @@ public class PurchaseManager {
 
 	private static BillingProvider billingSvc = null;
 	
+	/**
+	 * Ledger of verified purchases, opened in the background at initialize
+	 */
+	private static volatile Future<PurchaseLedger> ledger = null;
+	
+	/**
+	 * Products owned by the user, from verified purchases
+	 */
+	private static final EntitlementIndex entitlements = new EntitlementIndex();
+	
 	/**
 	 * Initialize the PurchaseManager for use.
 	 * @param launchingActivityContext The Activity that is invoking the purchase system
@@ -64,6 +79,18 @@ public class PurchaseManager {
 		
 		boolean debug = configuration.isDebug();
 
+		if (configuration.usePurchaseLedger() && ledger == null) {
+			openPurchaseLedger(Util.getAppContext());
+		}
+
+		if (configuration.useGoogleMarket()) {
+			MarketBillingService.preloadPublicKeys();
+			MarketBillingService.instance().setContext(launchingActivityContext);
+			MarketBillingService.instance().resumeOfflineWork();
+			// Bind now so the first purchase does not pay for a cold bind
+			MarketBillingService.instance().warmUp();
+		}
+
 		if (configuration.useGoogleMarket() && isGoogleMarketEnabled(launchingActivityContext)) {
 			billingSvc = MarketBillingService.instance();
 			//Fallback to stub if general failure happens
@@ -80,10 +107,149 @@ public class PurchaseManager {
 		}
 	}
 
+	private static synchronized void openPurchaseLedger(Context context) {
+		if (ledger != null) {
+			return;
+		}
+		final Context appContext = context;
+		ledger = BillingExecutors.cpuPool().submit(new Callable<PurchaseLedger>() {
+			public PurchaseLedger call() {
+				return PurchaseLedger.open(appContext.getFilesDir(), entitlements);
+			}
+		});
+	}
+
+	/**
+	 * The on-device ledger of verified purchases. Waits for the ledger to
+	 * finish opening if initialize was called very recently.
+	 * 
+	 * @return null if the ledger is disabled or could not be opened
+	 */
+	public static PurchaseLedger getPurchaseLedger() {
+		Future<PurchaseLedger> pending = ledger;
+		if (pending == null) {
+			return null;
+		}
+		try {
+			return pending.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) {
+			Log.e(PurchaseLedger.LOGTAG, "Could not open purchase ledger", e.getCause());
+		}
+		return null;
+	}
+
+	/**
+	 * Index of the products the user owns, built from verified purchases
+	 * and the purchase ledger
+	 * 
+	 * @return
+	 */
+	public static EntitlementIndex getEntitlements() {
+		return entitlements;
+	}
+
+	/**
+	 * Tests if the user owns a product, without any IPC. Lock-free and cheap
+	 * enough to call every frame. Only purchases that passed client signature
+	 * verification count.
+	 * 
+	 * @param productId
+	 * @return true if the product has a PURCHASED order that was not
+	 *         refunded or canceled
+	 */
+	public static boolean isOwned(String productId) {
+		return entitlements.isOwned(productId);
+	}
+
+	/**
+	 * Number of billing requests sent to the market that are still waiting
+	 * for a response. Requests that are never answered are failed and
+	 * dropped after {@link BillingConfig#getRequestTimeoutMillis()}.
+	 * 
+	 * @return
+	 */
+	public static int getInFlightRequestCount() {
+		return MarketBillingService.getInFlightRequestCount();
+	}
+
 	static public void attachBillingResponseListener(BillingResponseListener listener) {
 		billingSvc.attachBillingResponseListener(listener);
 	}
 
+	/**
+	 * State of the connection to the market billing service
+	 */
+	static public enum ConnectionState {
+		/**
+		 * Not bound, or the market could not be bound
+		 */
+		Disconnected,
+		/**
+		 * Bind requested, waiting for the market service to connect
+		 */
+		Connecting,
+		/**
+		 * Bound and ready to take requests without any bind latency
+		 */
+		Connected,
+		/**
+		 * The connection was lost and a reconnect is scheduled
+		 */
+		Backoff
+	}
+
+	/**
+	 * State of the connection to Google Market billing
+	 * 
+	 * @return
+	 */
+	public static ConnectionState getConnectionState() {
+		return MarketBillingService.instance().getConnectionState();
+	}
+
+	/**
+	 * True when the market billing service is bound, so a purchase request
+	 * goes straight to the buy page
+	 * 
+	 * @return
+	 */
+	public static boolean isBillingReady() {
+		return getConnectionState() == ConnectionState.Connected;
+	}
+
+	/**
+	 * State of the circuit breaker around Google Market billing
+	 */
+	static public enum CircuitState {
+		/**
+		 * Requests are sent normally
+		 */
+		Closed,
+		/**
+		 * Market kept failing; requests fail immediately until the cool-down
+		 * ends, and the store should be hidden
+		 */
+		Open,
+		/**
+		 * The cool-down has ended and the next request is sent as a probe
+		 */
+		HalfOpen
+	}
+
+	/**
+	 * State of the circuit breaker around Google Market billing. While it is
+	 * {@link CircuitState#Open} purchases fail at once,
+	 * {@link #isGoogleMarketEnabled(Context)} is false, and confirmations and
+	 * restores are held until Market recovers.
+	 * 
+	 * @return
+	 */
+	public static CircuitState getCircuitState() {
+		return MarketBillingService.getCircuitState();
+	}
+
 	/**
 	 * Billing service types that are supported
 	 * 
@@ -114,9 +280,6 @@ public class PurchaseManager {
 	 * @return
 	 */
 	public static BillingService availableBilling() {
-		if (!Util.isInternetActive()) {
-			return BillingService.None;
-		}
 		if (isGoogleMarketEnabled()) {
 			return BillingService.GoogleMarket;
 		}
@@ -127,17 +290,37 @@ public class PurchaseManager {
 		return isGoogleMarketEnabled(Util.getAppContext());
 	}
 
+	/**
+	 * Tests if Google Market billing is supported, from a cached answer that
+	 * is refreshed in the background. Cheap enough to call from the UI.
+	 * 
+	 * @param context
+	 * @return
+	 */
 	static public boolean isGoogleMarketEnabled(Context context) {
 		if (context == null) {
 			return false;
 		}
-		if (!Util.isInternetActive()) {
-			return false;
-		}
 		MarketBillingService.instance().setContext(context);
 		return MarketBillingService.instance().isBillingSupported();
 	}
 
+	/**
+	 * Asks the billing service to resend every purchase the user has made,
+	 * for example after a reinstall.  Attach a
+	 * {@link BillingProvider.RestoreTransactionsListener} to receive the
+	 * restored purchases in chunks and whether the market accepted the
+	 * request.
+	 * 
+	 * @return false if the request could not be sent
+	 */
+	public static boolean restoreTransactions() {
+		if (billingSvc == null) {
+			return false;
+		}
+		return billingSvc.restoreTransactions();
+	}
+
 	public static long buyItem(String productID) {
 		return billingSvc.buyItem(productID);
 	}
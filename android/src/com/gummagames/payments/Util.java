@@ -15,8 +15,6 @@
 package com.gummagames.payments;
 
 
-import java.util.Random;
-
 import android.content.Context;
 import android.net.ConnectivityManager;
 import android.net.NetworkInfo;
@@ -28,7 +26,7 @@ import android.net.NetworkInfo;
  */
 public class Util {
 	private static Context appContext = null;
-	static Random randomGenerator = new Random();
+	static final NonceRegistry nonces = new NonceRegistry();
 
 	public static void setAppContext(Context appContext) {
 		Util.appContext = appContext;
@@ -55,8 +53,21 @@ public class Util {
 	 *         Code modified from: http://www.androidsnippets.org/snippets/131/
 	 */
 	static public boolean isInternetActive() {
+		return isInternetActive(appContext);
+	}
 
-		ConnectivityManager connectivity = (ConnectivityManager) appContext
+	/**
+	 * Checks if we have a valid Internet Connection, using the given context
+	 * 
+	 * @param context
+	 * @return True if device has internet connectivity
+	 */
+	static public boolean isInternetActive(Context context) {
+		if (context == null) {
+			return false;
+		}
+
+		ConnectivityManager connectivity = (ConnectivityManager) context
 				.getSystemService(Context.CONNECTIVITY_SERVICE);
 
 		NetworkInfo info = (NetworkInfo) connectivity.getActiveNetworkInfo();
@@ -69,25 +80,54 @@ public class Util {
 		}
 		return true;
 	}
+
+	/**
+	 * Checks if any network is connected, roaming or not. Market still works
+	 * while roaming, so this is the check for whether billing requests can be
+	 * sent.
+	 * 
+	 * @param context
+	 * @return True if the active network is connected
+	 */
+	static public boolean isNetworkConnected(Context context) {
+		if (context == null) {
+			return false;
+		}
+
+		ConnectivityManager connectivity = (ConnectivityManager) context
+				.getSystemService(Context.CONNECTIVITY_SERVICE);
+
+		NetworkInfo info = (NetworkInfo) connectivity.getActiveNetworkInfo();
+
+		return info != null && info.isConnected();
+	}
 	
     /**
      * Generate a random number used only once.
+     * The nonce is remembered until it expires so responses can be checked
+     * with {@link #isNonceKnown(long)}.
      * @return
      */
     public static long generateNonce() {
-        long nonce = randomGenerator.nextLong();
-        //sKnownNonces.add(nonce);
-        return nonce;
+        return nonces.generate();
     }
 
-    /*
+    /**
+     * Forget a nonce, such as when the request carrying it was never sent
+     * @param nonce
+     */
     public static void removeNonce(long nonce) {
-        sKnownNonces.remove(nonce);
+        nonces.remove(nonce);
     }
 
+    /**
+     * True when the nonce was generated by {@link #generateNonce()} and has
+     * not expired
+     * @param nonce
+     * @return
+     */
     public static boolean isNonceKnown(long nonce) {
-        return sKnownNonces.contains(nonce);
+        return nonces.isKnown(nonce);
     }
-*/	
 
 }
@@ -18,16 +18,18 @@ import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
 import java.security.PublicKey;
 import java.security.SecureRandom;
-import java.security.Signature;
-import java.security.SignatureException;
 import java.security.spec.InvalidKeySpecException;
 import java.security.spec.X509EncodedKeySpec;
 import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import android.text.TextUtils;
 import android.util.Base64;
 import android.util.Log;
 
+import com.gummagames.payments.BillingExecutors;
 import com.gummagames.payments.KeyInitializationException;
 import com.gummagames.payments.PaidProduct;
 import com.gummagames.payments.PurchaseManager;
@@ -36,12 +38,19 @@ class Auth {
 
 	static String LOGTAG = "GUMMAPAYMENTS";
 	private static final String KEY_FACTORY_ALGORITHM = "RSA";
-	private static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
 	private static final SecureRandom RANDOM = new SecureRandom();
 	
 	static boolean strictCheck = false;
 
-	static private PublicKey publicKey = null;
+	/**
+	 * Verification engine for the most recently used public key
+	 */
+	static private volatile SignatureVerifier verifier = null;
+
+	/**
+	 * Payloads that have already been verified and parsed
+	 */
+	static final VerifiedReceiptCache receiptCache = new VerifiedReceiptCache();
 
 	/**
 	 * Get the current public key value
@@ -49,23 +58,47 @@ class Auth {
 	 * @return
 	 */
 	static PublicKey getPublicKey() {
-		if (publicKey == null) {
-			publicKey = generatePublicKey(PurchaseManager.getConfig().getPublicKey());
-			if(publicKey == null){
-				String message = "You must provide the Google Market Public Key to the PurchaseManager config at initialization";
-				if(strictCheck){
-					throw new KeyInitializationException(message);
-				}
-				else{
-					Log.w(LOGTAG, message);
-				}
+		SignatureVerifier keyVerifier = findVerifier(null);
+		return keyVerifier == null ? null : keyVerifier.getPublicKey();
+	}
+
+	/**
+	 * Get the verification engine for a key ID or fingerprint. A null hint
+	 * selects the key configured on the PurchaseManager config.
+	 * 
+	 * @param keyHint
+	 * @return null if no matching key is configured
+	 */
+	static SignatureVerifier findVerifier(String keyHint) {
+		SignatureVerifier keyVerifier = KeyRing.get().find(keyHint);
+		if(keyVerifier == null){
+			String message = keyHint == null
+					? "You must provide the Google Market Public Key to the PurchaseManager config at initialization"
+					: "No Google Market Public Key matches hint " + keyHint;
+			if(strictCheck){
+				throw new KeyInitializationException(message);
+			}
+			else{
+				Log.w(LOGTAG, message);
 			}
 		}
-		return publicKey;
+		return keyVerifier;
 	}
 
-	void setPublicKey(PublicKey publicKey) {
-		this.publicKey = publicKey;
+	/**
+	 * Get the verification engine for the given key, reusing the cached
+	 * engine when the key has not changed
+	 * 
+	 * @param publicKey
+	 * @return
+	 */
+	static SignatureVerifier getVerifier(PublicKey publicKey) {
+		SignatureVerifier current = verifier;
+		if (current == null || current.getPublicKey() != publicKey) {
+			current = new SignatureVerifier(publicKey);
+			verifier = current;
+		}
+		return current;
 	}
 
 	/**
@@ -74,9 +107,27 @@ class Auth {
 	 * @return
 	 */
 	public static ArrayList<PaidProduct> decodePurchasesWithoutVerification(String signedData) {
+		if(!checkNonce(signedData)){
+			return null;
+		}
 		return PaidProduct.parseAndroidMarketOrder(signedData, false);	
 	}
 
+	/**
+	 * Rejects payloads whose nonce we never sent or that has expired, before
+	 * any signature or JSON work
+	 * 
+	 * @param signedData
+	 * @return
+	 */
+	static boolean checkNonce(String signedData) {
+		if(!PaidProduct.hasKnownNonce(signedData)){
+			Log.w(LOGTAG, "Rejecting purchase data with unknown nonce");
+			return false;
+		}
+		return true;
+	}
+
 	/**
 	 * Verify the purchase signatures
 	 * 
@@ -85,12 +136,104 @@ class Auth {
 	 * @return
 	 */
 	public static ArrayList<PaidProduct> clientVerifyPurchase(String signedData, String signature) {
-		boolean verified = verify(getPublicKey(), signedData, signature);
+		return clientVerifyPurchase(signedData, signature, null);
+	}
+
+	/**
+	 * Verify the purchase signatures with a specific key
+	 * 
+	 * @param signedData
+	 * @param signature
+	 * @param keyHint key ID or fingerprint, null for the configured key
+	 * @return
+	 */
+	public static ArrayList<PaidProduct> clientVerifyPurchase(String signedData, String signature, String keyHint) {
+		if(!checkNonce(signedData)){
+			return null;
+		}
+		SignatureVerifier keyVerifier = findVerifier(keyHint);
+		ArrayList<PaidProduct> cached = receiptCache.get(keyVerifier, signedData, signature);
+		if(cached != null){
+			return cached;
+		}
+		boolean verified = verify(keyVerifier, signedData, signature);
 		if(!verified){
 			return null;
 		}
 		else{		
-			return PaidProduct.parseAndroidMarketOrder(signedData, verified);
+			ArrayList<PaidProduct> purchases = PaidProduct.parseAndroidMarketOrder(signedData, verified);
+			receiptCache.put(keyVerifier, signedData, signature, purchases);
+			return purchases;
+		}
+	}
+
+	/**
+	 * Verify a batch of signed purchase payloads in parallel on the shared CPU
+	 * pool. signedData[i] is verified against signatures[i]. Payloads that
+	 * fail verification are logged and dropped, the remaining purchases are
+	 * returned in input order.
+	 * 
+	 * @param signedData
+	 * @param signatures
+	 * @return null if the batch could not be verified, for example because a
+	 *         worker failed or was interrupted
+	 */
+	public static ArrayList<PaidProduct> clientVerifyPurchases(final String[] signedData, final String[] signatures) {
+		if (signedData.length != signatures.length) {
+			throw new IllegalArgumentException("signedData and signatures must be the same length");
+		}
+		final int count = signedData.length;
+		ArrayList<PaidProduct> purchases = new ArrayList<PaidProduct>();
+		if (count == 0) {
+			return purchases;
+		}
+
+		// Parse the keys once here rather than racing on them from the workers
+		KeyRing.get();
+
+		int chunks = Math.min(count, BillingExecutors.cpuPoolSize());
+		if (chunks == 1 || BillingExecutors.isCpuPoolThread()) {
+			verifyRange(signedData, signatures, 0, count, purchases);
+			return purchases;
+		}
+
+		ArrayList<Callable<ArrayList<PaidProduct>>> tasks = new ArrayList<Callable<ArrayList<PaidProduct>>>(chunks);
+		for (int c = 0; c < chunks; c++) {
+			final int start = (int) ((long) count * c / chunks);
+			final int end = (int) ((long) count * (c + 1) / chunks);
+			tasks.add(new Callable<ArrayList<PaidProduct>>() {
+				public ArrayList<PaidProduct> call() {
+					ArrayList<PaidProduct> result = new ArrayList<PaidProduct>();
+					verifyRange(signedData, signatures, start, end, result);
+					return result;
+				}
+			});
+		}
+
+		try {
+			for (Future<ArrayList<PaidProduct>> future : BillingExecutors.cpuPool().invokeAll(tasks)) {
+				purchases.addAll(future.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			Log.w(LOGTAG, "Batch verification interrupted, dropping " + count + " payloads");
+			return null;
+		} catch (ExecutionException e) {
+			Log.e(LOGTAG, "Batch verification failed, dropping " + count + " payloads", e.getCause());
+			return null;
+		}
+		return purchases;
+	}
+
+	private static void verifyRange(String[] signedData, String[] signatures, int start, int end,
+			ArrayList<PaidProduct> out) {
+		for (int i = start; i < end; i++) {
+			ArrayList<PaidProduct> verified = clientVerifyPurchase(signedData[i], signatures[i]);
+			if (verified != null) {
+				out.addAll(verified);
+			} else {
+				Log.w(LOGTAG, "Dropping purchase payload " + i + " that failed verification");
+			}
 		}
 	}
 
@@ -107,10 +250,14 @@ class Auth {
 	 * @return true if the data and signature match
 	 */
 	public static boolean verify(PublicKey publicKey, String signedData, String signature) {
+		return verify(publicKey == null ? null : getVerifier(publicKey), signedData, signature);
+	}
+
+	private static boolean verify(SignatureVerifier keyVerifier, String signedData, String signature) {
 		if (Consts.DEBUG) {
 			Log.i(LOGTAG, "signature: " + signature);
 		}
-		if(publicKey == null){
+		if(keyVerifier == null){
 			if(!PurchaseManager.getConfig().isDebug()){
 				return false;
 			}
@@ -119,24 +266,7 @@ class Auth {
 			}
 		}
 		
-		Signature sig;
-		try {
-			sig = Signature.getInstance(SIGNATURE_ALGORITHM);
-			sig.initVerify(publicKey);
-			sig.update(signedData.getBytes());
-			if (!sig.verify(Base64.decode(signature, Base64.DEFAULT))) {
-				Log.e(LOGTAG, "Signature verification failed.");
-				return false;
-			}
-			return true;
-		} catch (IllegalArgumentException e) {
-			Log.e(LOGTAG, "Invalid key specification.");
-		} catch (SignatureException e) {
-			Log.e(LOGTAG, "Signature exception.");
-		} catch (Exception e) {
-			Log.e(LOGTAG, "Base64 decoding failed.");
-		}
-		return false;
+		return keyVerifier.verify(signedData, signature);
 	}
 
 	/**
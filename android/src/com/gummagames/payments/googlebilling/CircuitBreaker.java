@@ -0,0 +1,150 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.gummagames.payments.PurchaseManager.CircuitState;
+
+/**
+ * Circuit breaker around calls to the Market billing service.
+ * <p>
+ * After {@link #FAILURE_THRESHOLD} failures in a row, such as a Market app
+ * that cannot be bound or whose Terms of Service have not been accepted, the
+ * breaker opens and requests fail immediately instead of waiting on the
+ * binder. Once the cool-down has passed it lets a single probe request
+ * through: success closes the breaker, failure opens it again for twice as
+ * long, up to {@link #MAX_COOL_DOWN_MILLIS}.
+ * <p>
+ * The breaker only decides; the billing service fails interactive requests
+ * it refuses and holds background work until the breaker closes.
+ */
+class CircuitBreaker {
+
+	private static final String TAG = "CircuitBreaker";
+
+	static final int FAILURE_THRESHOLD = 5;
+	static final long COOL_DOWN_MILLIS = 30 * 1000;
+	static final long MAX_COOL_DOWN_MILLIS = 10 * 60 * 1000;
+
+	private CircuitState mState = CircuitState.Closed;
+	private int mFailures = 0;
+	private long mCoolDownMillis = COOL_DOWN_MILLIS;
+	private long mOpenUntil = 0;
+	/**
+	 * When the half-open probe was let through, or 0 if none is out
+	 */
+	private long mProbeStarted = 0;
+
+	synchronized CircuitState getState() {
+		if (mState == CircuitState.Open && SystemClock.elapsedRealtime() >= mOpenUntil) {
+			// Cool-down is over, the next request is the probe
+			return CircuitState.HalfOpen;
+		}
+		return mState;
+	}
+
+	/**
+	 * True while requests are being refused without a probe
+	 *
+	 * @return
+	 */
+	boolean isOpen() {
+		return getState() == CircuitState.Open;
+	}
+
+	/**
+	 * Asks to send a request
+	 *
+	 * @return false if the request must fail fast
+	 */
+	synchronized boolean allowRequest() {
+		long now = SystemClock.elapsedRealtime();
+		switch (mState) {
+		case Closed:
+			return true;
+		case Open:
+			if (now < mOpenUntil) {
+				return false;
+			}
+			mState = CircuitState.HalfOpen;
+			mProbeStarted = now;
+			return true;
+		default:
+			// Half-open: one probe at a time, unless the probe never ran
+			if (mProbeStarted != 0 && now - mProbeStarted < mCoolDownMillis) {
+				return false;
+			}
+			mProbeStarted = now;
+			return true;
+		}
+	}
+
+	/**
+	 * How long until {@link #allowRequest()} will let a probe through
+	 *
+	 * @return 0 if a request would be allowed now
+	 */
+	synchronized long millisUntilProbe() {
+		long now = SystemClock.elapsedRealtime();
+		switch (mState) {
+		case Closed:
+			return 0;
+		case Open:
+			return Math.max(0, mOpenUntil - now);
+		default:
+			if (mProbeStarted == 0) {
+				return 0;
+			}
+			return Math.max(0, mProbeStarted + mCoolDownMillis - now);
+		}
+	}
+
+	/**
+	 * Records a call that reached Market
+	 *
+	 * @return true if this closed an open or half-open breaker
+	 */
+	synchronized boolean onSuccess() {
+		boolean recovered = mState != CircuitState.Closed;
+		if (recovered) {
+			Log.i(TAG, "Market billing recovered, closing circuit");
+		}
+		mState = CircuitState.Closed;
+		mFailures = 0;
+		mCoolDownMillis = COOL_DOWN_MILLIS;
+		mProbeStarted = 0;
+		return recovered;
+	}
+
+	synchronized void onFailure() {
+		if (mState == CircuitState.HalfOpen) {
+			mCoolDownMillis = Math.min(mCoolDownMillis * 2, MAX_COOL_DOWN_MILLIS);
+			open();
+			return;
+		}
+		if (mState == CircuitState.Closed && ++mFailures >= FAILURE_THRESHOLD) {
+			open();
+		}
+	}
+
+	private void open() {
+		mState = CircuitState.Open;
+		mOpenUntil = SystemClock.elapsedRealtime() + mCoolDownMillis;
+		mProbeStarted = 0;
+		Log.w(TAG, "Market billing failing, opening circuit for " + mCoolDownMillis + "ms");
+	}
+}
@@ -0,0 +1,173 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+import com.gummagames.payments.BillingConfig;
+import com.gummagames.payments.BillingExecutors;
+import com.gummagames.payments.PurchaseManager;
+
+/**
+ * Public keys from the {@link BillingConfig}, parsed once and indexed by key
+ * ID and by SHA-1 fingerprint so verification goes straight to the right key.
+ * A key ring is immutable; a new one is built when the configuration changes.
+ */
+final class KeyRing {
+
+	private static final String LOGTAG = Auth.LOGTAG;
+	private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+	private static volatile KeyRing sKeyRing = null;
+
+	private final BillingConfig mConfig;
+	private final HashMap<String, SignatureVerifier> mById = new HashMap<String, SignatureVerifier>();
+	private final HashMap<String, SignatureVerifier> mByFingerprint = new HashMap<String, SignatureVerifier>();
+	private SignatureVerifier mDefault = null;
+
+	private KeyRing(BillingConfig config) {
+		mConfig = config;
+		if (config == null) {
+			return;
+		}
+
+		for (Map.Entry<String, String> key : config.getPublicKeys().entrySet()) {
+			SignatureVerifier verifier = parse(key.getValue());
+			if (verifier != null) {
+				mById.put(key.getKey(), verifier);
+				mByFingerprint.put(fingerprint(verifier.getPublicKey()), verifier);
+			}
+		}
+
+		SignatureVerifier primary = parse(config.getPublicKey());
+		if (primary != null) {
+			mByFingerprint.put(fingerprint(primary.getPublicKey()), primary);
+		}
+
+		if (config.getPublicKeyHint() != null) {
+			mDefault = lookup(config.getPublicKeyHint());
+		}
+		if (mDefault == null) {
+			mDefault = primary;
+		}
+		if (mDefault == null && mById.size() == 1) {
+			mDefault = mById.values().iterator().next();
+		}
+	}
+
+	/**
+	 * The key ring for the current PurchaseManager configuration, parsing the
+	 * keys if that has not happened yet
+	 *
+	 * @return
+	 */
+	static KeyRing get() {
+		BillingConfig config = PurchaseManager.getConfig();
+		KeyRing ring = sKeyRing;
+		if (ring != null && ring.mConfig == config) {
+			return ring;
+		}
+		synchronized (KeyRing.class) {
+			ring = sKeyRing;
+			if (ring == null || ring.mConfig != config) {
+				ring = new KeyRing(config);
+				sKeyRing = ring;
+			}
+			return ring;
+		}
+	}
+
+	/**
+	 * Parses the configured keys on a background thread so the first purchase
+	 * does not pay for decoding them
+	 */
+	static void preload() {
+		BillingExecutors.cpuPool().execute(new Runnable() {
+			public void run() {
+				get();
+			}
+		});
+	}
+
+	/**
+	 * Key selected by the configured hint, or the primary public key
+	 *
+	 * @return null if no key is configured
+	 */
+	SignatureVerifier getDefault() {
+		return mDefault;
+	}
+
+	/**
+	 * Finds a key by key ID or by hex SHA-1 fingerprint
+	 *
+	 * @param hint
+	 * @return the default key when hint is null, null if the hint is unknown
+	 */
+	SignatureVerifier find(String hint) {
+		if (hint == null) {
+			return mDefault;
+		}
+		return lookup(hint);
+	}
+
+	private SignatureVerifier lookup(String hint) {
+		SignatureVerifier verifier = mById.get(hint);
+		if (verifier == null) {
+			verifier = mByFingerprint.get(hint.toLowerCase());
+		}
+		return verifier;
+	}
+
+	private static SignatureVerifier parse(String encodedPublicKey) {
+		if (TextUtils.isEmpty(encodedPublicKey)) {
+			return null;
+		}
+		try {
+			PublicKey key = Auth.generatePublicKey(encodedPublicKey);
+			return key == null ? null : new SignatureVerifier(key);
+		} catch (IllegalArgumentException e) {
+			Log.e(LOGTAG, "Skipping invalid public key", e);
+			return null;
+		}
+	}
+
+	/**
+	 * Hex SHA-1 of the X.509 encoded key
+	 *
+	 * @param key
+	 * @return
+	 */
+	static String fingerprint(PublicKey key) {
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(key.getEncoded());
+			char[] hex = new char[digest.length * 2];
+			for (int i = 0; i < digest.length; i++) {
+				hex[i * 2] = HEX[(digest[i] >> 4) & 0xf];
+				hex[i * 2 + 1] = HEX[digest[i] & 0xf];
+			}
+			return new String(hex);
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+}
@@ -0,0 +1,208 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Concurrent map from primitive long keys, such as Market request IDs, to
+ * values. Keys are never boxed.
+ * <p>
+ * The table is split into independently locked segments chosen by key hash,
+ * so threads working on different requests rarely touch the same lock. Each
+ * segment is an open-addressed table with linear probing and backward-shift
+ * deletion, so removals leave no tombstones behind.
+ *
+ * @param <V>
+ */
+class LongRequestMap<V> {
+
+	private static final int SEGMENTS = 16;
+	private static final int INITIAL_CAPACITY = 8;
+
+	private final Segment<V>[] mSegments;
+	private final AtomicInteger mSize = new AtomicInteger();
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	LongRequestMap() {
+		mSegments = new Segment[SEGMENTS];
+		for (int i = 0; i < SEGMENTS; i++) {
+			mSegments[i] = new Segment<V>();
+		}
+	}
+
+	/**
+	 * Maps key to value
+	 *
+	 * @param key
+	 * @param value must not be null
+	 * @return the previous value, or null
+	 */
+	V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException();
+		}
+		int hash = hash(key);
+		V previous = segmentFor(hash).put(key, hash, value);
+		if (previous == null) {
+			mSize.incrementAndGet();
+		}
+		return previous;
+	}
+
+	V get(long key) {
+		int hash = hash(key);
+		return segmentFor(hash).get(key, hash);
+	}
+
+	/**
+	 * Removes the mapping for key
+	 *
+	 * @param key
+	 * @return the removed value, or null if there was none
+	 */
+	V remove(long key) {
+		int hash = hash(key);
+		V removed = segmentFor(hash).remove(key, hash);
+		if (removed != null) {
+			mSize.decrementAndGet();
+		}
+		return removed;
+	}
+
+	/**
+	 * Number of mappings, without locking
+	 *
+	 * @return
+	 */
+	int size() {
+		return mSize.get();
+	}
+
+	/**
+	 * Copies every value into a new list
+	 *
+	 * @return
+	 */
+	ArrayList<V> values() {
+		ArrayList<V> values = new ArrayList<V>(size());
+		for (Segment<V> segment : mSegments) {
+			segment.copyValues(values);
+		}
+		return values;
+	}
+
+	private Segment<V> segmentFor(int hash) {
+		return mSegments[(hash >>> 28) & (SEGMENTS - 1)];
+	}
+
+	private static int hash(long key) {
+		key ^= key >>> 33;
+		key *= 0xff51afd7ed558ccdL;
+		key ^= key >>> 33;
+		return (int) key;
+	}
+
+	private static final class Segment<V> {
+		private long[] mKeys = new long[INITIAL_CAPACITY];
+		private Object[] mValues = new Object[INITIAL_CAPACITY];
+		private int mCount = 0;
+
+		synchronized V put(long key, int hash, V value) {
+			int slot = find(key, hash);
+			if (mValues[slot] != null) {
+				@SuppressWarnings("unchecked")
+				V previous = (V) mValues[slot];
+				mValues[slot] = value;
+				return previous;
+			}
+			if ((mCount + 1) * 4 > mKeys.length * 3) {
+				grow();
+				slot = find(key, hash);
+			}
+			mKeys[slot] = key;
+			mValues[slot] = value;
+			mCount++;
+			return null;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized V get(long key, int hash) {
+			return (V) mValues[find(key, hash)];
+		}
+
+		synchronized V remove(long key, int hash) {
+			int slot = find(key, hash);
+			@SuppressWarnings("unchecked")
+			V removed = (V) mValues[slot];
+			if (removed == null) {
+				return null;
+			}
+			// Backward-shift the rest of the probe run into the hole
+			int mask = mKeys.length - 1;
+			int hole = slot;
+			int next = (hole + 1) & mask;
+			while (mValues[next] != null) {
+				int home = hash(mKeys[next]) & mask;
+				if (((next - home) & mask) >= ((next - hole) & mask)) {
+					mKeys[hole] = mKeys[next];
+					mValues[hole] = mValues[next];
+					hole = next;
+				}
+				next = (next + 1) & mask;
+			}
+			mKeys[hole] = 0;
+			mValues[hole] = null;
+			mCount--;
+			return removed;
+		}
+
+		@SuppressWarnings("unchecked")
+		synchronized void copyValues(ArrayList<V> out) {
+			for (Object value : mValues) {
+				if (value != null) {
+					out.add((V) value);
+				}
+			}
+		}
+
+		/**
+		 * Slot holding key, or the empty slot where it would go
+		 */
+		private int find(long key, int hash) {
+			int mask = mKeys.length - 1;
+			int slot = hash & mask;
+			while (mValues[slot] != null && mKeys[slot] != key) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		private void grow() {
+			long[] keys = mKeys;
+			Object[] values = mValues;
+			mKeys = new long[keys.length * 2];
+			mValues = new Object[keys.length * 2];
+			for (int i = 0; i < keys.length; i++) {
+				if (values[i] != null) {
+					int slot = find(keys[i], hash(keys[i]));
+					mKeys[slot] = keys[i];
+					mValues[slot] = values[i];
+				}
+			}
+		}
+	}
+}
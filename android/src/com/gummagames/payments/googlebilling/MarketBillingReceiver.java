@@ -80,6 +80,12 @@ public class MarketBillingReceiver extends BroadcastReceiver {
      * @param notifyId the notification ID
      */
     private void notify(Context context, String notifyId) {
+        if (NotificationFilter.get(context).isHandled(notifyId)) {
+            if (Consts.DEBUG) {
+                Log.i(TAG, "dropping already confirmed notifyId: " + notifyId);
+            }
+            return;
+        }
         Intent intent = new Intent(Consts.ACTION_GET_PURCHASE_INFORMATION);
         intent.setClass(context, MarketBillingService.class);
         intent.putExtra(Consts.NOTIFICATION_ID, notifyId);
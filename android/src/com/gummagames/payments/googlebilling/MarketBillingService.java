@@ -16,8 +16,10 @@
 package com.gummagames.payments.googlebilling;
 
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import android.app.Activity;
 import android.app.PendingIntent;
@@ -29,14 +31,21 @@ import android.content.ServiceConnection;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.android.vending.billing.IMarketBillingService;
+import com.gummagames.payments.BillingConfig;
+import com.gummagames.payments.BillingExecutors;
 import com.gummagames.payments.BillingProvider;
 import com.gummagames.payments.BillingResponseCode;
 import com.gummagames.payments.IPaidProduct;
 import com.gummagames.payments.PaidProduct;
+import com.gummagames.payments.PurchaseEvent;
+import com.gummagames.payments.PurchaseLedger;
 import com.gummagames.payments.PurchaseManager;
+import com.gummagames.payments.PurchaseManager.CircuitState;
+import com.gummagames.payments.PurchaseManager.ConnectionState;
 import com.gummagames.payments.Util;
 
 
@@ -69,28 +78,115 @@ public class MarketBillingService extends Service implements ServiceConnection,
 	// mEventListeners;
 
 	/**
-	 * The list of requests that are pending while we are waiting for the
-	 * connection to the MarketBillingService to be established.
+	 * Requests waiting to be sent, by priority class. Any thread may add; only
+	 * the thread holding {@link #mDrainingPending} removes.
 	 */
-	private static LinkedList<BillingRequest> mPendingRequests = new LinkedList<BillingRequest>();
+	private static final RequestScheduler<BillingRequest> mPendingRequests = new RequestScheduler<BillingRequest>();
 
 	/**
-	 * The list of requests that we have sent to Android Market but for which we
-	 * have not yet received a response code. The HashMap is indexed by the
-	 * request Id that each request receives when it executes.
+	 * Set while one thread is running the pending requests
 	 */
-	private static HashMap<Long, BillingRequest> mSentRequests = new HashMap<Long, BillingRequest>();
+	private static final AtomicBoolean mDrainingPending = new AtomicBoolean(false);
+
+	/**
+	 * Set while a drain of the pending requests is posted to the worker
+	 */
+	private static final AtomicBoolean mDrainPosted = new AtomicBoolean(false);
+
+	/**
+	 * The requests that we have sent to Android Market but for which we have
+	 * not yet received a response code, indexed by the request Id that each
+	 * request receives when it executes.
+	 */
+	private static final LongRequestMap<BillingRequest> mSentRequests = new LongRequestMap<BillingRequest>();
+
+	private static final int SUPPORT_UNKNOWN = 0;
+	private static final int SUPPORT_AVAILABLE = 1;
+	private static final int SUPPORT_UNAVAILABLE = 2;
+
+	/**
+	 * How long a billing supported answer is trusted before it is refreshed
+	 */
+	static final long SUPPORTED_TTL_MILLIS = 30 * 60 * 1000L;
+
+	/**
+	 * A supported check that has not answered after this long no longer
+	 * blocks a new one
+	 */
+	static final long SUPPORTED_CHECK_TIMEOUT_MILLIS = 30 * 1000L;
+
+	private static volatile int sBillingSupport = SUPPORT_UNKNOWN;
+	private static volatile long sSupportCheckedAt = 0;
+
+	/**
+	 * Start time of the supported check in flight, or 0
+	 */
+	private static final AtomicLong sSupportCheckStarted = new AtomicLong(0);
+
+	/**
+	 * Nonce of the latest restore request, or 0
+	 */
+	private static volatile long sRestoreNonce = 0;
+
+	/**
+	 * Retries shared by every request: up to 10 at once, regaining one every
+	 * 3 seconds
+	 */
+	private static final RetryPolicy.Budget mRetryBudget = new RetryPolicy.Budget(10, 3000);
+
+	/**
+	 * Retries waiting for their delay to pass
+	 */
+	private static final AtomicInteger mScheduledRetries = new AtomicInteger(0);
+
+	/**
+	 * Trips when Market keeps failing, so requests fail fast instead of
+	 * waiting on a broken binder
+	 */
+	private static final CircuitBreaker mBreaker = new CircuitBreaker();
+
+	/**
+	 * Background requests held while the circuit breaker is open or Market
+	 * cannot be bound, sent again once Market recovers
+	 */
+	private static final ConcurrentLinkedQueue<BillingRequest> mParkedRequests = new ConcurrentLinkedQueue<BillingRequest>();
+
+	/**
+	 * Set while a replay of the parked requests is posted to the worker
+	 */
+	private static final AtomicBoolean mReplayPosted = new AtomicBoolean(false);
+
+	/**
+	 * Shortest wait before parked requests are tried again
+	 */
+	static final long PARK_RETRY_MILLIS = 1000;
+
+	/**
+	 * Deadlines for sent requests, one second resolution
+	 */
+	private static final TimerWheel mDeadlines = new TimerWheel("billing-deadline", 1000, 64);
 
 	/**
 	 * The base class for all requests that use the MarketBillingService. Each
 	 * derived class overrides the run() method to call the appropriate service
-	 * interface. If we are already connected to the MarketBillingService, then we
-	 * call the run() method directly. Otherwise, we bind to the service and save
-	 * the request on a queue to be run later when the service is connected.
+	 * interface. Requests are queued by priority and sent from the billing
+	 * worker thread once the MarketBillingService is connected.
 	 */
-	abstract class BillingRequest {
+	abstract class BillingRequest implements TimerWheel.Task {
 		private final int mStartId;
 		protected long mRequestId;
+		private TimerWheel.Timeout mDeadline;
+		private final AtomicBoolean mCompleted = new AtomicBoolean(false);
+		/**
+		 * Number of times this request has been sent to Market
+		 */
+		private int mAttempts = 0;
+		private boolean mBinderDied = false;
+		/**
+		 * Set when {@link #runRequest()} refused this request because its
+		 * priority class was full
+		 */
+		private boolean mQueueFull = false;
 
 		public BillingRequest(int startId) {
 			mStartId = startId;
@@ -101,22 +197,77 @@ public class MarketBillingService extends Service implements ServiceConnection,
 		}
 
 		/**
-		 * Run the request, starting the connection if necessary.
+		 * Priority class of this request in the {@link RequestScheduler}
+		 * 
+		 * @return
+		 */
+		protected int getPriority() {
+			return RequestScheduler.INFO;
+		}
+
+		/**
+		 * How this request is retried after a dead binder or a transient
+		 * response code
+		 * 
+		 * @return
+		 */
+		protected RetryPolicy getRetryPolicy() {
+			return RetryPolicy.NONE;
+		}
+
+		/**
+		 * Queue the request to be sent from the billing worker, starting the
+		 * connection if necessary.
 		 * 
-		 * @return true if the request was executed or queued; false if there was an
-		 *         error starting the connection
+		 * @return true if the request was queued or parked; false if its
+		 *         priority class is full, or for interactive requests if the
+		 *         circuit breaker is open or there was an error starting the
+		 *         connection
 		 */
 		public boolean runRequest() {
-			if (runIfConnected()) {
-				return true;
+			cancelIdleUnbind();
+			if (!mBreaker.allowRequest()) {
+				return park("Market billing unavailable");
 			}
+			if (mService == null && !bindToMarketBillingService()) {
+				mBreaker.onFailure();
+				return park("Could not bind to Market");
+			}
+			if (!mPendingRequests.offer(this, getPriority())) {
+				Log.w(TAG, "Too many queued requests, dropping " + getClass().getSimpleName());
+				mQueueFull = true;
+				return false;
+			}
+			scheduleDrain();
+			return true;
+		}
+
+		/**
+		 * True if {@link #runRequest()} refused this request only because too
+		 * many requests of its class were already queued
+		 * 
+		 * @return
+		 */
+		boolean wasQueueFull() {
+			return mQueueFull;
+		}
 
-			if (bindToMarketBillingService()) {
-				// Add a pending request to run when the service is connected.
-				mPendingRequests.add(this);
-				return true;
+		/**
+		 * Interactive requests fail at once so the user is not left waiting;
+		 * background work is held and sent again when Market recovers
+		 * 
+		 * @param reason
+		 * @return false if the request failed
+		 */
+		private boolean park(String reason) {
+			if (getPriority() == RequestScheduler.INTERACTIVE) {
+				Log.w(TAG, reason + ", failing " + getClass().getSimpleName());
+				return false;
 			}
-			return false;
+			Log.w(TAG, reason + ", holding " + getClass().getSimpleName());
+			mParkedRequests.add(this);
+			scheduleReplay(Math.max(mBreaker.millisUntilProbe(), PARK_RETRY_MILLIS));
+			return true;
 		}
 
 		/**
@@ -131,18 +282,26 @@ public class MarketBillingService extends Service implements ServiceConnection,
 			}
 			if (mService != null) {
 				try {
+					mAttempts++;
 					mRequestId = run();
 					if (Consts.DEBUG) {
 						Log.d(TAG, "request id: " + mRequestId);
 					}
 					if (mRequestId >= 0) {
 						mSentRequests.put(mRequestId, this);
+						mDeadline = mDeadlines.schedule(this, getTimeoutMillis());
+					}
+					if (mBreaker.onSuccess()) {
+						replayParked();
 					}
 					return true;
 				} catch (RemoteException e) {
+					mBinderDied = true;
+					mBreaker.onFailure();
 					onRemoteException(e);
 				}catch (NullPointerException e){
 					Log.w(TAG, "User has not yet accepted Google Market Terms of Service");
+					mBreaker.onFailure();
 				}
 			}
 			return false;
@@ -159,6 +318,7 @@ public class MarketBillingService extends Service implements ServiceConnection,
 		protected void onRemoteException(RemoteException e) {
 			Log.w(TAG, "remote billing service crashed");
 			mService = null;
+			connection().onConnectionLost();
 		}
 
 		/**
@@ -168,6 +328,95 @@ public class MarketBillingService extends Service implements ServiceConnection,
 		 */
 		abstract protected long run() throws RemoteException;
 
+		/**
+		 * How long to wait for Market's response code before failing the request
+		 * 
+		 * @return
+		 */
+		protected long getTimeoutMillis() {
+			return PurchaseManager.getConfig().getRequestTimeoutMillis();
+		}
+
+		/**
+		 * Delivers the outcome of this request. Only the first call has any
+		 * effect, whether it comes from the response, a timeout or a duplicate
+		 * RESPONSE_CODE broadcast.
+		 * 
+		 * @param responseCode
+		 */
+		void complete(int responseCode) {
+			if (mCompleted.get()) {
+				return;
+			}
+			mDeadlines.cancel(mDeadline);
+			mDeadline = null;
+			RetryPolicy policy = getRetryPolicy();
+			if (policy.isRetryable(responseCode) && mayRetry()) {
+				long delay = policy.delayMillis(mAttempts);
+				Log.w(TAG, getClass().getSimpleName() + " got " + responseCode + ", retrying in " + delay + "ms");
+				scheduleRetry(delay);
+				return;
+			}
+			finish(responseCode);
+		}
+
+		/**
+		 * Delivers the final outcome, without any retry
+		 * 
+		 * @param responseCode
+		 */
+		void finish(int responseCode) {
+			if (mCompleted.compareAndSet(false, true)) {
+				responseCodeReceived(responseCode);
+				checkIdle();
+			}
+		}
+
+		/**
+		 * True when the policy allows another attempt and the shared retry
+		 * budget has a token for it
+		 */
+		boolean mayRetry() {
+			return getRetryPolicy().canRetry(mAttempts) && mRetryBudget.tryAcquire();
+		}
+
+		/**
+		 * True, once, after the last attempt failed with a dead binder
+		 */
+		boolean consumeBinderDeath() {
+			boolean died = mBinderDied;
+			mBinderDied = false;
+			return died;
+		}
+
+		/**
+		 * Puts the request back in the pending queue after a delay
+		 */
+		private void scheduleRetry(long delayMillis) {
+			mScheduledRetries.incrementAndGet();
+			BillingExecutors.worker().postDelayed(new Runnable() {
+				public void run() {
+					boolean queued = runRequest();
+					mScheduledRetries.decrementAndGet();
+					if (!queued) {
+						finish(BillingResponseCode.ERROR);
+					}
+				}
+			}, delayMillis);
+		}
+
+		/**
+		 * Called on the deadline thread when Market never answered. The request
+		 * is failed back to listeners unless its response arrived first.
+		 */
+		public void onTimeout() {
+			if (mSentRequests.remove(mRequestId) != this) {
+				return;
+			}
+			Log.w(TAG, getClass().getSimpleName() + " " + mRequestId + " timed out");
+			complete(BillingResponseCode.ERROR);
+		}
+
 		/**
 		 * This is called when Android Market sends a response code for this
 		 * request.
@@ -214,9 +463,37 @@ public class MarketBillingService extends Service implements ServiceConnection,
 				Log.i(TAG, "CheckBillingSupported response code: " + responseCode);
 			}
 			boolean billingSupported = (responseCode == BillingResponseCode.OK);
+			recordBillingSupported(billingSupported);
 			ResponseHandler.checkBillingSupportedResponse(billingSupported);
 			return Consts.BILLING_RESPONSE_INVALID_REQUEST_ID;
 		}
+
+		@Override
+		protected void onRemoteException(RemoteException e) {
+			super.onRemoteException(e);
+			// Let the next caller try again
+			sSupportCheckStarted.set(0);
+		}
+
+		/**
+		 * Only called when the check could not be sent, since Market answers it
+		 * synchronously
+		 */
+		@Override
+		protected void responseCodeReceived(int responseCode) {
+			sSupportCheckStarted.set(0);
+			ResponseHandler.checkBillingSupportedResponse(false);
+		}
+
+		@Override
+		protected int getPriority() {
+			return RequestScheduler.INTERACTIVE;
+		}
+
+		@Override
+		protected RetryPolicy getRetryPolicy() {
+			return RetryPolicy.INTERACTIVE;
+		}
 	}
 
 	/**
@@ -283,6 +560,21 @@ public class MarketBillingService extends Service implements ServiceConnection,
 
 		}
 
+		@Override
+		protected long getTimeoutMillis() {
+			return PurchaseManager.getConfig().getPurchaseTimeoutMillis();
+		}
+
+		@Override
+		protected int getPriority() {
+			return RequestScheduler.INTERACTIVE;
+		}
+
+		@Override
+		protected RetryPolicy getRetryPolicy() {
+			return RetryPolicy.INTERACTIVE;
+		}
+
 		@Override
 		protected void responseCodeReceived(int responseCode) {
 			ResponseHandler.responseCodeReceived(MarketBillingService.this, this, responseCode);
@@ -300,6 +592,16 @@ public class MarketBillingService extends Service implements ServiceConnection,
 			mNotifyIds = notifyIds;
 		}
 
+		@Override
+		protected int getPriority() {
+			return RequestScheduler.CONFIRM;
+		}
+
+		@Override
+		protected RetryPolicy getRetryPolicy() {
+			return RetryPolicy.CONFIRM;
+		}
+
 		@Override
 		protected long run() throws RemoteException {
 			Bundle request = makeRequestBundle("CONFIRM_NOTIFICATIONS");
@@ -309,6 +611,17 @@ public class MarketBillingService extends Service implements ServiceConnection,
 			return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
 					Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
 		}
+
+		/**
+		 * The synchronous reply only means Market accepted the request; the
+		 * notifications are filtered once the server has confirmed them
+		 */
+		@Override
+		protected void responseCodeReceived(int responseCode) {
+			if (responseCode == BillingResponseCode.OK) {
+				NotificationFilter.get(MarketBillingService.this).markHandled(mNotifyIds);
+			}
+		}
 	}
 
 	/**
@@ -323,6 +636,11 @@ public class MarketBillingService extends Service implements ServiceConnection,
 			mNotifyIds = notifyIds;
 		}
 
+		@Override
+		protected RetryPolicy getRetryPolicy() {
+			return RetryPolicy.INFO;
+		}
+
 		@Override
 		protected long run() throws RemoteException {
 			mNonce = Util.generateNonce(); // Security.generateNonce();
@@ -330,7 +648,9 @@ public class MarketBillingService extends Service implements ServiceConnection,
 			Bundle request = makeRequestBundle("GET_PURCHASE_INFORMATION");
 			request.putLong(Consts.BILLING_REQUEST_NONCE, mNonce);
 			request.putStringArray(Consts.BILLING_REQUEST_NOTIFY_IDS, mNotifyIds);
+			long start = SystemClock.uptimeMillis();
 			Bundle response = mService.sendBillingRequest(request);
+			getInfoBatcher().recordLatency(SystemClock.uptimeMillis() - start);
 			logResponseCode("getPurchaseInformation", response);
 			return response.getLong(Consts.BILLING_RESPONSE_REQUEST_ID,
 					Consts.BILLING_RESPONSE_INVALID_REQUEST_ID);
@@ -340,7 +660,7 @@ public class MarketBillingService extends Service implements ServiceConnection,
 		protected void onRemoteException(RemoteException e) {
 			super.onRemoteException(e);
 
-			// Security.removeNonce(mNonce);
+			Util.removeNonce(mNonce);
 		}
 	}
 
@@ -357,9 +677,20 @@ public class MarketBillingService extends Service implements ServiceConnection,
 			super(-1);
 		}
 
+		@Override
+		protected int getPriority() {
+			return RequestScheduler.RESTORE;
+		}
+
+		@Override
+		protected RetryPolicy getRetryPolicy() {
+			return RetryPolicy.RESTORE;
+		}
+
 		@Override
 		protected long run() throws RemoteException {
 			mNonce = Util.generateNonce();
+			sRestoreNonce = mNonce;
 
 			Bundle request = makeRequestBundle("RESTORE_TRANSACTIONS");
 			request.putLong(Consts.BILLING_REQUEST_NONCE, mNonce);
@@ -372,7 +703,7 @@ public class MarketBillingService extends Service implements ServiceConnection,
 		@Override
 		protected void onRemoteException(RemoteException e) {
 			super.onRemoteException(e);
-			// Security.removeNonce(mNonce);
+			Util.removeNonce(mNonce);
 		}
 
 		@Override
@@ -405,12 +736,20 @@ public class MarketBillingService extends Service implements ServiceConnection,
 	private static final String TAG = "BillingService";
 
 	/** The service connection to the remote MarketBillingService. */
-	private static IMarketBillingService mService;
+	private static volatile IMarketBillingService mService;
 
 	public static IMarketBillingService marketServiceStub() {
 		return mService;
 	}
 
+	/**
+	 * Parses the public keys from the PurchaseManager config in the
+	 * background, ahead of the first purchase
+	 */
+	public static void preloadPublicKeys() {
+		KeyRing.preload();
+	}
+
 	/**
 	 * Helper method for building market requests. Accepts values
 	 * 
@@ -431,6 +770,121 @@ public class MarketBillingService extends Service implements ServiceConnection,
 
 	private boolean mContextBound = false;
 
+	/**
+	 * The one binding to Market, shared by the singleton and the service
+	 * instance the system starts. It is bound from the application context so
+	 * it outlives a stopped service instance.
+	 */
+	private static MarketConnection mConnection = null;
+
+	/**
+	 * The service instance the system has created, until it is destroyed
+	 */
+	private static volatile MarketBillingService mRunningService = null;
+
+	/**
+	 * Binder callbacks for {@link #mConnection}. The connection outlives any
+	 * one service instance, so it must not hold one; callbacks go to whichever
+	 * instance is current when they arrive.
+	 */
+	private static final ServiceConnection mMarketCallbacks = new ServiceConnection() {
+		public void onServiceConnected(ComponentName name, IBinder service) {
+			MarketBillingService target = callbackTarget();
+			if (target != null) {
+				target.onServiceConnected(name, service);
+				return;
+			}
+			// Nothing can run requests, just remember the binding
+			mService = IMarketBillingService.Stub.asInterface(service);
+			mConnection.onConnected();
+		}
+
+		public void onServiceDisconnected(ComponentName name) {
+			MarketBillingService target = callbackTarget();
+			if (target != null) {
+				target.onServiceDisconnected(name);
+				return;
+			}
+			mService = null;
+			mConnection.onConnectionLost();
+		}
+	};
+
+	/**
+	 * The singleton once it has a context, otherwise the running service
+	 * 
+	 * @return null if neither can take callbacks
+	 */
+	private static MarketBillingService callbackTarget() {
+		MarketBillingService singleton = mInstance;
+		if (singleton != null && singleton.mContextBound) {
+			return singleton;
+		}
+		return mRunningService;
+	}
+
+	/**
+	 * Start ID of the last command handled, or -1 once the service has been
+	 * asked to stop. Only touched on the billing worker.
+	 */
+	private int mLastStartId = -1;
+
+	/**
+	 * PURCHASE_STATE_CHANGED payloads waiting to be verified together. Only
+	 * touched on the billing worker.
+	 */
+	private final ArrayList<String> mPendingSignedData = new ArrayList<String>();
+	private final ArrayList<String> mPendingSignatures = new ArrayList<String>();
+	private int mPendingPayloadStartId = -1;
+
+	private final Runnable mVerifyPayloads = new Runnable() {
+		public void run() {
+			verifyPendingPayloads();
+		}
+	};
+
+	private NotifyIdBatcher mConfirmBatcher = null;
+	private NotifyIdBatcher mInfoBatcher = null;
+
+	/**
+	 * Starting window for purchase information batches, before any latency
+	 * has been measured
+	 */
+	private static final long INFO_BATCH_WINDOW_MILLIS = 50;
+	private static final long INFO_BATCH_MAX_WINDOW_MILLIS = 500;
+	private static final int INFO_BATCH_MIN = 4;
+	private static final int INFO_BATCH_MAX = 32;
+
+	private final Runnable mIdleCheck = new Runnable() {
+		public void run() {
+			if (!isIdle()) {
+				return;
+			}
+			if (mLastStartId >= 0) {
+				// Ignored by the system if a newer start has arrived since
+				stopSelf(mLastStartId);
+				mLastStartId = -1;
+			}
+			long idleMillis = PurchaseManager.getConfig().getIdleUnbindMillis();
+			if (idleMillis > 0) {
+				cancelIdleUnbind();
+				BillingExecutors.worker().postDelayed(mIdleUnbind, idleMillis);
+			}
+		}
+	};
+
+	private final Runnable mIdleUnbind = new Runnable() {
+		public void run() {
+			if (!isIdle()) {
+				return;
+			}
+			if (debugLog) {
+				Log.d(TAG, "Billing idle, unbinding from Market");
+			}
+			releaseConnection();
+		}
+	};
+
 	public void setContext(Context context) {
 		if (!mContextBound) {
 			try {
@@ -469,9 +923,20 @@ public class MarketBillingService extends Service implements ServiceConnection,
 
 	@Override
 	public void onCreate() {
+		mRunningService = this;
 		this.bindToMarketBillingService();
 	}
 
+	@Override
+	public void onDestroy() {
+		// The Market binding belongs to the application and stays up
+		if (mRunningService == this) {
+			mRunningService = null;
+		}
+		cancelIdleUnbind();
+		BillingExecutors.worker().removeCallbacks(mIdleCheck);
+	}
+
 	/**
 	 * We don't support binding to this service, only starting the service.
 	 */
@@ -481,8 +946,15 @@ public class MarketBillingService extends Service implements ServiceConnection,
 	}
 
 	@Override
-	public void onStart(Intent intent, int startId) {
-		handleCommand(intent, startId);
+	public void onStart(final Intent intent, final int startId) {
+		// Verification and parsing stay off the main thread
+		BillingExecutors.worker().post(new Runnable() {
+			public void run() {
+				handleCommand(intent, startId);
+				mLastStartId = startId;
+				checkIdle();
+			}
+		});
 	}
 
 	/**
@@ -506,11 +978,15 @@ public class MarketBillingService extends Service implements ServiceConnection,
 			confirmNotifications(startId, notifyIds);
 		} else if (Consts.ACTION_GET_PURCHASE_INFORMATION.equals(action)) {
 			String notifyId = intent.getStringExtra(Consts.NOTIFICATION_ID);
-			getPurchaseInformation(startId, new String[] { notifyId });
+			if (NotificationFilter.get(this).isHandled(notifyId)) {
+				Log.i(TAG, "Skipping already confirmed notification " + notifyId);
+				return;
+			}
+			getInfoBatcher().add(startId, new String[] { notifyId });
 		} else if (Consts.ACTION_PURCHASE_STATE_CHANGED.equals(action)) {
 			String signedData = intent.getStringExtra(Consts.INAPP_SIGNED_DATA);
 			String signature = intent.getStringExtra(Consts.INAPP_SIGNATURE);
-			purchaseStateChanged(startId, signedData, signature);
+			queuePurchaseStateChanged(startId, signedData, signature);
 		} else if (Consts.ACTION_RESPONSE_CODE.equals(action)) {
 			long requestId = intent.getLongExtra(Consts.INAPP_REQUEST_ID, -1);
 			int responseCode = intent.getIntExtra(Consts.INAPP_RESPONSE_CODE, BillingResponseCode.ERROR);
@@ -520,30 +996,128 @@ public class MarketBillingService extends Service implements ServiceConnection,
 
 	}
 
+	/**
+	 * Routes a RESPONSE_CODE broadcast to the request it answers. The lookup
+	 * and removal is a single probe of the sent table, whatever the number of
+	 * requests in flight, and removal makes the response race-free against
+	 * the request's deadline.
+	 */
 	private void checkResponseCode(long requestId, int responseCode) {
-		Log.d(TAG, requestId + ": " + responseCode);
+		BillingRequest request = mSentRequests.remove(requestId);
+		if (request == null) {
+			// Already timed out, or sent by an earlier process
+			Log.d(TAG, requestId + ": " + responseCode + " (no pending request)");
+			return;
+		}
+		if (debugLog) {
+			Log.d(TAG, request.getClass().getSimpleName() + " " + requestId + ": " + responseCode);
+		}
+		request.complete(responseCode);
+	}
 
+	/**
+	 * Number of requests sent to Market that are still waiting for their
+	 * response code
+	 * 
+	 * @return
+	 */
+	public static int getInFlightRequestCount() {
+		return mSentRequests.size();
+	}
+
+	/**
+	 * Holds a PURCHASE_STATE_CHANGED payload until the broadcasts already
+	 * queued on the worker have been handled, so a burst of payloads, such as
+	 * a restore, is verified as one parallel batch
+	 */
+	private void queuePurchaseStateChanged(int startId, String signedData, String signature) {
+		if (mPendingSignedData.isEmpty()) {
+			BillingExecutors.worker().post(mVerifyPayloads);
+		}
+		mPendingSignedData.add(signedData);
+		mPendingSignatures.add(signature);
+		mPendingPayloadStartId = Math.max(mPendingPayloadStartId, startId);
 	}
 
-	private void purchaseStateChanged(int startId, String signedData, String signature) {
-		ArrayList<PaidProduct> purchases;
+	/**
+	 * Verifies every queued payload and delivers the purchases. Payloads
+	 * answering our restore carry its nonce and are delivered as restored
+	 * purchases.
+	 */
+	private void verifyPendingPayloads() {
+		int count = mPendingSignedData.size();
+		if (count == 0) {
+			return;
+		}
+		int startId = mPendingPayloadStartId;
+		long restoreNonce = sRestoreNonce;
+		ArrayList<String> signedData = new ArrayList<String>(count);
+		ArrayList<String> signatures = new ArrayList<String>(count);
+		ArrayList<String> restoredData = new ArrayList<String>();
+		ArrayList<String> restoredSignatures = new ArrayList<String>();
+		for (int i = 0; i < count; i++) {
+			String data = mPendingSignedData.get(i);
+			if (restoreNonce != 0 && PaidProduct.readNonce(data) == restoreNonce) {
+				restoredData.add(data);
+				restoredSignatures.add(mPendingSignatures.get(i));
+			} else {
+				signedData.add(data);
+				signatures.add(mPendingSignatures.get(i));
+			}
+		}
+		mPendingSignedData.clear();
+		mPendingSignatures.clear();
+		mPendingPayloadStartId = -1;
+
+		if (!signedData.isEmpty()) {
+			purchasesReceived(startId, decodePayloads(signedData, signatures), false);
+		}
+		if (!restoredData.isEmpty()) {
+			purchasesReceived(startId, decodePayloads(restoredData, restoredSignatures), true);
+		}
+	}
+
+	/**
+	 * Verifies payloads on the CPU pool when client verification is on
+	 * 
+	 * @return null if the whole batch failed verification
+	 */
+	private ArrayList<PaidProduct> decodePayloads(ArrayList<String> signedData, ArrayList<String> signatures) {
 		if (PurchaseManager.getConfig().verifySignatureOnClient()) {
-			purchases = Auth.clientVerifyPurchase(signedData, signature);
-		} else {
-			purchases = Auth.decodePurchasesWithoutVerification(signedData);
+			return Auth.clientVerifyPurchases(signedData.toArray(new String[signedData.size()]),
+					signatures.toArray(new String[signatures.size()]));
 		}
+		ArrayList<PaidProduct> purchases = new ArrayList<PaidProduct>();
+		for (String data : signedData) {
+			ArrayList<PaidProduct> decoded = Auth.decodePurchasesWithoutVerification(data);
+			if (decoded != null) {
+				purchases.addAll(decoded);
+			}
+		}
+		return purchases;
+	}
 
-		if (purchases == null) {
+	private void purchasesReceived(int startId, ArrayList<PaidProduct> purchases, boolean restored) {
+		if (purchases == null || purchases.isEmpty()) {
 			return;
 		}
 
+		PurchaseLedger ledger = PurchaseManager.getPurchaseLedger();
 		ArrayList<String> notifyList = new ArrayList<String>();
 		for (PaidProduct prod : purchases) {
+			if (ledger != null) {
+				ledger.append(prod);
+			}
+			PurchaseManager.getEntitlements().record(prod);
 			if (prod.notificationID != null) {
 				notifyList.add(prod.notificationID);
 			}
-			ResponseHandler.purchaseResponse(this, prod.purchaseState, prod.getProductID(), prod.orderId,
-					prod.purchaseTime, prod.getProductExtraData());
+			if (!restored) {
+				ResponseHandler.purchaseResponse(this, PurchaseEvent.obtain(prod));
+			}
+		}
+		if (restored) {
+			ResponseHandler.restoredPurchases(this, purchases);
 		}
 		if (!notifyList.isEmpty()) {
 			String[] notifyIds = notifyList.toArray(new String[notifyList.size()]);
@@ -552,42 +1126,242 @@ public class MarketBillingService extends Service implements ServiceConnection,
 	}
 
 	private boolean getPurchaseInformation(int startId, String[] notifyIds) {
+		if (!Util.isNetworkConnected(this)) {
+			outbox().queuePurchaseInformation(notifyIds);
+			return true;
+		}
 		return new GetPurchaseInformation(startId, notifyIds).runRequest();
 	}
 
-	private boolean confirmNotifications(int startId, String[] notifyIds) {
+	/**
+	 * Notification IDs from IN_APP_NOTIFY broadcasts are gathered here and
+	 * fetched with one GET_PURCHASE_INFORMATION request per batch. The batch
+	 * size follows the measured latency of that request.
+	 */
+	private synchronized NotifyIdBatcher getInfoBatcher() {
+		if (mInfoBatcher == null) {
+			mInfoBatcher = new NotifyIdBatcher(BillingExecutors.worker(), new NotifyIdBatcher.Sink() {
+				public boolean send(int startId, String[] notifyIds) {
+					return getPurchaseInformation(startId, notifyIds);
+				}
+			}, INFO_BATCH_WINDOW_MILLIS, INFO_BATCH_MIN);
+			mInfoBatcher.setAdaptive(INFO_BATCH_MAX_WINDOW_MILLIS, INFO_BATCH_MIN, INFO_BATCH_MAX);
+		}
+		return mInfoBatcher;
+	}
+
+	/**
+	 * Adds notifications to the confirmation batch, which is sent as a single
+	 * CONFIRM_NOTIFICATIONS request when the batch window closes
+	 */
+	private void confirmNotifications(int startId, String[] notifyIds) {
+		getConfirmBatcher().add(startId, notifyIds);
+	}
+
+	private synchronized NotifyIdBatcher getConfirmBatcher() {
+		if (mConfirmBatcher == null) {
+			BillingConfig config = PurchaseManager.getConfig();
+			mConfirmBatcher = new NotifyIdBatcher(BillingExecutors.worker(), new NotifyIdBatcher.Sink() {
+				public boolean send(int startId, String[] notifyIds) {
+					return sendConfirmNotifications(startId, notifyIds);
+				}
+			}, config.getConfirmBatchWindowMillis(), config.getConfirmBatchSize());
+		}
+		return mConfirmBatcher;
+	}
+
+	private boolean sendConfirmNotifications(int startId, String[] notifyIds) {
+		if (!Util.isNetworkConnected(this)) {
+			outbox().queueConfirm(notifyIds);
+			return true;
+		}
 		return new ConfirmNotifications(startId, notifyIds).runRequest();
 	}
 
+	/**
+	 * Asks Market to resend every purchase made by the user. Queued in the
+	 * offline outbox if there is no connectivity.
+	 * 
+	 * @return false if there was an error connecting to Android Market
+	 */
+	public boolean restoreTransactions() {
+		if (!Util.isNetworkConnected(this)) {
+			outbox().queueRestore();
+			return true;
+		}
+		return new RestoreTransactions().runRequest();
+	}
+
+	/**
+	 * Picks up offline work saved by an earlier process, sending it as soon as
+	 * there is connectivity
+	 */
+	public void resumeOfflineWork() {
+		sendOfflineWork();
+	}
+
+	/**
+	 * Drains the outbox now if there is connectivity. Offline, the outbox
+	 * waits for the network itself.
+	 */
+	private void sendOfflineWork() {
+		OfflineOutbox outbox = outbox();
+		if (!outbox.isEmpty() && Util.isNetworkConnected(this)) {
+			outbox.drain();
+		}
+	}
+
+	private OfflineOutbox outbox() {
+		OfflineOutbox outbox = OfflineOutbox.get(this);
+		outbox.attach(this);
+		return outbox;
+	}
+
+	/**
+	 * Sends work that was queued while offline, merged into a single request
+	 * per type. Anything that cannot be sent goes back in the outbox, which
+	 * only listens for connectivity while the device is offline; otherwise it
+	 * is sent again on the next connection to Market.
+	 * 
+	 * @param batch
+	 */
+	void runOfflineBatch(final OfflineOutbox.Batch batch) {
+		if (!BillingExecutors.isWorkerThread()) {
+			BillingExecutors.worker().post(new Runnable() {
+				public void run() {
+					runOfflineBatch(batch);
+				}
+			});
+			return;
+		}
+		if (batch.checkSupported && !new CheckBillingSupported().runRequest()) {
+			outbox().queueCheckSupported();
+		}
+		if (batch.infoIds.length > 0) {
+			NotificationFilter filter = NotificationFilter.get(this);
+			ArrayList<String> infoIds = new ArrayList<String>(batch.infoIds.length);
+			for (String notifyId : batch.infoIds) {
+				if (!filter.isHandled(notifyId)) {
+					infoIds.add(notifyId);
+				}
+			}
+			String[] notifyIds = infoIds.toArray(new String[infoIds.size()]);
+			if (notifyIds.length > 0 && !new GetPurchaseInformation(-1, notifyIds).runRequest()) {
+				outbox().queuePurchaseInformation(notifyIds);
+			}
+		}
+		if (batch.confirmIds.length > 0 && !new ConfirmNotifications(-1, batch.confirmIds).runRequest()) {
+			outbox().queueConfirm(batch.confirmIds);
+		}
+		if (batch.restore && !new RestoreTransactions().runRequest()) {
+			outbox().queueRestore();
+		}
+	}
+
 	/**
 	 * Binds to the MarketBillingService and returns true if the bind succeeded.
+	 * Does nothing if a binding already exists or a reconnect is pending.
 	 * 
 	 * @return true if the bind succeeded; false otherwise
 	 */
 	boolean bindToMarketBillingService() {
-		try {
-			if (debugLog) {
-				Log.i(TAG, "binding to Market billing service");
+		cancelIdleUnbind();
+		return connection().connect();
+	}
+
+	/**
+	 * Drops the binding to Market
+	 */
+	private void releaseConnection() {
+		connection().disconnect();
+		mService = null;
+	}
+
+	/**
+	 * True when nothing is queued, parked, batched, waiting to retry or
+	 * waiting for a response code
+	 */
+	private boolean isIdle() {
+		if (!mPendingRequests.isEmpty() || mSentRequests.size() > 0 || mScheduledRetries.get() > 0
+				|| !mParkedRequests.isEmpty()) {
+			return false;
+		}
+		if (!mPendingSignedData.isEmpty()) {
+			return false;
+		}
+		synchronized (this) {
+			if (mConfirmBatcher != null && mConfirmBatcher.size() > 0) {
+				return false;
+			}
+			if (mInfoBatcher != null && mInfoBatcher.size() > 0) {
+				return false;
 			}
-			boolean bindResult = bindService(new Intent(Consts.MARKET_BILLING_SERVICE_ACTION), this, // ServiceConnection.
-					Context.BIND_AUTO_CREATE);
+		}
+		return true;
+	}
 
-			if (bindResult) {
-				return true;
-			} else {
-				Log.e(TAG, "Could not bind to service.");
+	/**
+	 * Once all work has finished, stops the service for the last start ID it
+	 * handled and unbinds from Market after
+	 * {@link BillingConfig#getIdleUnbindMillis()} without new requests
+	 */
+	private void checkIdle() {
+		BillingExecutors.worker().post(mIdleCheck);
+	}
+
+	private void cancelIdleUnbind() {
+		BillingExecutors.worker().removeCallbacks(mIdleUnbind);
+	}
+
+	private MarketConnection connection() {
+		synchronized (MarketBillingService.class) {
+			if (mConnection == null) {
+				mConnection = new MarketConnection(getApplicationContext(), mMarketCallbacks,
+						BillingExecutors.worker());
 			}
-		} catch (SecurityException e) {
-			Log.e(TAG, "Security exception: " + e);
+			return mConnection;
+		}
+	}
+
+	/**
+	 * Binds to Market ahead of the first request, so the first purchase does
+	 * not wait for a cold bind
+	 * 
+	 * @return false if Market could not be bound
+	 */
+	public boolean warmUp() {
+		boolean bound = bindToMarketBillingService();
+		checkIdle();
+		return bound;
+	}
+
+	/**
+	 * State of the binding to Market. Never creates the connection, so it is
+	 * safe to call before a context has been set.
+	 * 
+	 * @return
+	 */
+	public ConnectionState getConnectionState() {
+		synchronized (MarketBillingService.class) {
+			if (mConnection == null) {
+				return ConnectionState.Disconnected;
+			}
+			return mConnection.getState();
 		}
-		return false;
 	}
 
 	/**
 	 * Attempts to buy an item from the market
 	 */
 	public long buyItem(String item) {
-		return buyItem(new PaidProduct(item, null));
+		Log.d(LOGTAG, "Google buy item: " + item);
+
+		boolean result = new RequestPurchase(item, null).runRequest();
+
+		if (!result) {
+			return 0;
+		}
+		return 1l;
 	}
 
 	/**
@@ -619,42 +1393,113 @@ public class MarketBillingService extends Service implements ServiceConnection,
 	}
 
 	/**
-	 * Runs any pending requests that are waiting for a connection to the service
-	 * to be established. This runs in the main UI thread.
+	 * Posts a drain of the pending requests to the worker, unless one is
+	 * already posted
 	 */
-	private void runPendingRequests() {
-		int maxStartId = -1;
-		BillingRequest request;
-		while ((request = mPendingRequests.peek()) != null) {
-			if (request.runIfConnected()) {
-				// Remove the request
-				mPendingRequests.remove();
-
-				// Remember the largest startId, which is the most recent
-				// request to start this service.
-				if (maxStartId < request.getStartId()) {
-					maxStartId = request.getStartId();
+	private void scheduleDrain() {
+		if (mDrainPosted.compareAndSet(false, true)) {
+			BillingExecutors.worker().post(new Runnable() {
+				public void run() {
+					mDrainPosted.set(false);
+					runPendingRequests();
 				}
-			} else {
-				// The service crashed, so restart it. Note that this leaves
-				// the current request on the queue.
-				bindToMarketBillingService();
+			});
+		}
+	}
+
+	/**
+	 * Tries the parked requests again after delayMillis, unless a replay is
+	 * already posted
+	 */
+	private void scheduleReplay(long delayMillis) {
+		if (mReplayPosted.compareAndSet(false, true)) {
+			BillingExecutors.worker().postDelayed(new Runnable() {
+				public void run() {
+					mReplayPosted.set(false);
+					replayParked();
+				}
+			}, delayMillis);
+		}
+	}
+
+	/**
+	 * Sends the parked requests again. The first becomes the breaker's probe
+	 * and the rest are parked again until it succeeds.
+	 */
+	private void replayParked() {
+		for (int i = mParkedRequests.size(); i > 0; i--) {
+			BillingRequest request = mParkedRequests.poll();
+			if (request == null) {
+				return;
+			}
+			if (!request.runRequest()) {
+				// Its priority class is full; wait for the queue to drain
+				mParkedRequests.add(request);
+				scheduleReplay(PARK_RETRY_MILLIS);
 				return;
 			}
 		}
 	}
 
+	/**
+	 * Runs any pending requests that are waiting for a connection to the
+	 * service to be established, highest priority first. This runs on the
+	 * billing worker thread.
+	 */
+	private void runPendingRequests() {
+		BillingRequest request;
+		do {
+			if (!mDrainingPending.compareAndSet(false, true)) {
+				// Another thread is draining and will see our request
+				return;
+			}
+			try {
+				while ((request = mPendingRequests.peek()) != null) {
+					if (request.runIfConnected()) {
+						mPendingRequests.remove(request);
+					} else if (mService != null) {
+						// Connected but Market refused the call; fail it rather than
+						// block everything queued behind it
+						mPendingRequests.remove(request);
+						request.finish(BillingResponseCode.ERROR);
+					} else {
+						// The service crashed. The connection reconnects with backoff
+						// and runs us again; this leaves the current request on the queue
+						// unless it is out of attempts or retry budget.
+						if (request.consumeBinderDeath() && !request.mayRetry()) {
+							mPendingRequests.remove(request);
+							request.finish(BillingResponseCode.ERROR);
+						}
+						bindToMarketBillingService();
+						return;
+					}
+				}
+			} finally {
+				mDrainingPending.set(false);
+			}
+			// A request may have been added after our last peek
+		} while (mPendingRequests.peek() != null && mService != null);
+		checkIdle();
+	}
+
 	/**
 	 * This is called when we are connected to the MarketBillingService. This runs
 	 * in the main UI thread.
 	 */
 	public void onServiceConnected(ComponentName name, IBinder service) {
 		mService = IMarketBillingService.Stub.asInterface(service);
+		connection().onConnected();
 		if (debugLog) {
 			Log.d(TAG, "Billing service connected");
 		}
 
-		runPendingRequests();
+		BillingExecutors.worker().post(new Runnable() {
+			public void run() {
+				runPendingRequests();
+				replayParked();
+				sendOfflineWork();
+			}
+		});
 	}
 
 	/**
@@ -663,6 +1508,7 @@ public class MarketBillingService extends Service implements ServiceConnection,
 	public void onServiceDisconnected(ComponentName name) {
 		Log.w(TAG, "Billing service disconnected");
 		mService = null;
+		connection().onConnectionLost();
 	}
 
 	/**
@@ -670,62 +1516,81 @@ public class MarketBillingService extends Service implements ServiceConnection,
 	 * terminates to avoid leaking a ServiceConnection.
 	 */
 	public void unbind() {
-		try {
-			unbindService(this);
-		} catch (IllegalArgumentException e) {
-			// This might happen if the service was disconnected
-		}
+		cancelIdleUnbind();
+		releaseConnection();
 	}
 
+	/**
+	 * Cached answer to whether in-app billing is supported. Never blocks:
+	 * when the answer is unknown or older than {@link #SUPPORTED_TTL_MILLIS}
+	 * a CHECK_BILLING_SUPPORTED request is started in the background, shared by
+	 * every caller until it completes, and listeners hear the result through
+	 * onBillingSupported.
+	 * 
+	 * @return false once Market has reported billing as unsupported or could
+	 *         not be bound, or while the circuit breaker is open; true while
+	 *         the answer is still unknown
+	 */
 	public boolean isBillingSupported() {
+		if (mBreaker.isOpen()) {
+			return false;
+		}
+		int support = sBillingSupport;
+		if (support == SUPPORT_UNKNOWN
+				|| SystemClock.elapsedRealtime() - sSupportCheckedAt > SUPPORTED_TTL_MILLIS) {
+			refreshBillingSupported();
+		}
+		return support != SUPPORT_UNAVAILABLE;
+	}
 
-		boolean oldBindTest = true;
-
-		if (oldBindTest) {
-			return new CheckBillingSupported().runRequest();
-		} else {
-
-			boolean bound = true;
-			if (mService == null) {
-				bound = this.bindToMarketBillingService();
-			}
-
-			if (!bound) {
-				return false;
-			}
-
-			if (mService == null) {
-				try {
-					Thread.sleep(100);
-					if (mService == null) {
-						bound = this.bindToMarketBillingService();
-					}
-					if (mService == null) {
-						Thread.sleep(100);
-					}
-				} catch (InterruptedException e) {
-					// TODO Auto-generated catch block
-					e.printStackTrace();
-				}
-				if (mService == null) {
-					return false;
-				}
-
+	/**
+	 * Starts a billing supported check unless one is already in flight
+	 */
+	private void refreshBillingSupported() {
+		long now = SystemClock.elapsedRealtime();
+		long started = sSupportCheckStarted.get();
+		if (started != 0 && now - started < SUPPORTED_CHECK_TIMEOUT_MILLIS) {
+			return;
+		}
+		if (!sSupportCheckStarted.compareAndSet(started, now)) {
+			return;
+		}
+		if (!Util.isNetworkConnected(this)) {
+			// Stays in flight until the outbox sends it
+			outbox().queueCheckSupported();
+			return;
+		}
+		CheckBillingSupported check = new CheckBillingSupported();
+		if (!check.runRequest()) {
+			if (check.wasQueueFull()) {
+				// Too busy to ask, which says nothing about support; keep the
+				// cached answer and let the next caller try again
+				sSupportCheckStarted.set(0);
+				return;
 			}
-
-			Bundle response = execServiceRequest(BillingRequestType.CheckSupported);
-			String val = response.getString(Consts.BILLING_RESPONSE_RESPONSE_CODE);
-
-			boolean haskey = response.containsKey(Consts.BILLING_RESPONSE_RESPONSE_CODE);
-
-			int vi = response.getInt(Consts.BILLING_RESPONSE_RESPONSE_CODE);
-
-			if ("RESULT_OK".equals(val)) {
-				return true;
+			if (mBreaker.getState() == CircuitState.Closed) {
+				recordBillingSupported(false);
+			} else {
+				// Market is failing, not unsupported; check again once it recovers
+				sSupportCheckStarted.set(0);
 			}
+			ResponseHandler.checkBillingSupportedResponse(false);
 		}
+	}
+
+	/**
+	 * State of the circuit breaker around the Market billing service
+	 * 
+	 * @return
+	 */
+	public static CircuitState getCircuitState() {
+		return mBreaker.getState();
+	}
 
-		return false;
+	static void recordBillingSupported(boolean supported) {
+		sBillingSupport = supported ? SUPPORT_AVAILABLE : SUPPORT_UNAVAILABLE;
+		sSupportCheckedAt = SystemClock.elapsedRealtime();
+		sSupportCheckStarted.set(0);
 	}
 
 	/**
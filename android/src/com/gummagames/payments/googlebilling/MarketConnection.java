@@ -0,0 +1,172 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.Random;
+
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.os.Handler;
+import android.util.Log;
+
+import com.gummagames.payments.PurchaseManager.ConnectionState;
+
+/**
+ * Keeps a single binding to the Market billing service alive. The billing
+ * service holds one instance, bound from the application context, which is
+ * shared by the PurchaseManager singleton and the service instance the
+ * system starts.
+ * <p>
+ * {@link #connect()} is idempotent: it binds only when there is no binding
+ * and no reconnect pending, so callers can ask for a connection as often as
+ * they like. When the binder dies or the service disconnects, the binding is
+ * dropped and re-established after a jittered exponential backoff, so a
+ * crashing Market app is not hammered with bind calls and many apps on the
+ * device do not all reconnect at the same instant.
+ */
+class MarketConnection {
+
+	private static final String TAG = "MarketConnection";
+
+	static final long BASE_BACKOFF_MILLIS = 1000;
+	static final long MAX_BACKOFF_MILLIS = 60 * 1000;
+
+	private final Context mContext;
+	private final ServiceConnection mConnection;
+	private final Handler mHandler;
+	private final Random mRandom = new Random();
+
+	private ConnectionState mState = ConnectionState.Disconnected;
+	private boolean mBound = false;
+	private int mAttempts = 0;
+
+	private final Runnable mReconnect = new Runnable() {
+		public void run() {
+			synchronized (MarketConnection.this) {
+				if (mState != ConnectionState.Backoff) {
+					return;
+				}
+				mState = ConnectionState.Disconnected;
+			}
+			connect();
+		}
+	};
+
+	/**
+	 * @param context context to bind from
+	 * @param connection receives the connected and disconnected callbacks
+	 * @param handler runs reconnect attempts
+	 */
+	MarketConnection(Context context, ServiceConnection connection, Handler handler) {
+		mContext = context;
+		mConnection = connection;
+		mHandler = handler;
+	}
+
+	synchronized ConnectionState getState() {
+		return mState;
+	}
+
+	/**
+	 * Binds to Market unless already bound, binding or waiting to retry
+	 *
+	 * @return false if Market could not be bound, for example because it is
+	 *         not installed
+	 */
+	synchronized boolean connect() {
+		switch (mState) {
+		case Connected:
+		case Connecting:
+		case Backoff:
+			return true;
+		default:
+			break;
+		}
+		try {
+			if (Consts.DEBUG) {
+				Log.i(TAG, "binding to Market billing service");
+			}
+			if (mContext.bindService(new Intent(Consts.MARKET_BILLING_SERVICE_ACTION), mConnection,
+					Context.BIND_AUTO_CREATE)) {
+				mBound = true;
+				mState = ConnectionState.Connecting;
+				return true;
+			}
+			Log.e(TAG, "Could not bind to service.");
+		} catch (SecurityException e) {
+			Log.e(TAG, "Security exception: " + e);
+		}
+		return false;
+	}
+
+	/**
+	 * Called from onServiceConnected
+	 */
+	synchronized void onConnected() {
+		mHandler.removeCallbacks(mReconnect);
+		mState = ConnectionState.Connected;
+		mAttempts = 0;
+	}
+
+	/**
+	 * Called when the service disconnects or a call fails with a dead
+	 * binder. Drops the binding and schedules a reconnect.
+	 */
+	synchronized void onConnectionLost() {
+		if (mState == ConnectionState.Backoff) {
+			return;
+		}
+		unbindQuietly();
+		long delay = nextBackoff();
+		mState = ConnectionState.Backoff;
+		Log.w(TAG, "Market connection lost, reconnecting in " + delay + "ms");
+		mHandler.postDelayed(mReconnect, delay);
+	}
+
+	/**
+	 * Drops the binding and cancels any reconnect
+	 */
+	synchronized void disconnect() {
+		mHandler.removeCallbacks(mReconnect);
+		unbindQuietly();
+		mState = ConnectionState.Disconnected;
+		mAttempts = 0;
+	}
+
+	/**
+	 * Exponential backoff with jitter: a random delay between half and all
+	 * of BASE * 2^attempts, capped at {@link #MAX_BACKOFF_MILLIS}
+	 */
+	private long nextBackoff() {
+		long ceiling = BASE_BACKOFF_MILLIS << Math.min(mAttempts, 16);
+		ceiling = Math.min(ceiling, MAX_BACKOFF_MILLIS);
+		mAttempts++;
+		long half = ceiling / 2;
+		return half + (long) (mRandom.nextDouble() * (ceiling - half));
+	}
+
+	private void unbindQuietly() {
+		if (!mBound) {
+			return;
+		}
+		mBound = false;
+		try {
+			mContext.unbindService(mConnection);
+		} catch (IllegalArgumentException e) {
+			// This might happen if the service was disconnected
+		}
+	}
+}
@@ -0,0 +1,229 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.gummagames.payments.BillingExecutors;
+
+/**
+ * Persisted record of notification IDs that have already been fetched and
+ * confirmed, so IN_APP_NOTIFY redeliveries can be dropped before any
+ * GET_PURCHASE_INFORMATION binder call.
+ * <p>
+ * The most recent IDs are kept in an exact, bounded set that is saved to a
+ * small file. A bloom filter over the same IDs answers the common case, a
+ * notification we have never seen, without touching the set. A notification
+ * is only dropped on an exact match, so a bloom false positive costs one
+ * lookup and never loses a purchase.
+ */
+class NotificationFilter {
+
+	private static final String TAG = "NotificationFilter";
+	static final String FILE_NAME = "handled_notifications";
+
+	static final int MAX_RECENT = 512;
+
+	/**
+	 * 8192 bits, sized for about 1% false positives at {@link #MAX_RECENT}
+	 */
+	private static final int BLOOM_BITS = 8192;
+	private static final int BLOOM_HASHES = 4;
+
+	private static NotificationFilter sInstance = null;
+
+	private final File mFile;
+	private final LinkedHashSet<String> mRecent = new LinkedHashSet<String>();
+	private final long[] mBloom = new long[BLOOM_BITS / 64];
+	private int mBloomInserts = 0;
+	private boolean mDirty = false;
+	private boolean mSaveScheduled = false;
+
+	static synchronized NotificationFilter get(Context context) {
+		if (sInstance == null) {
+			sInstance = new NotificationFilter(new File(context.getFilesDir(), FILE_NAME));
+		}
+		return sInstance;
+	}
+
+	NotificationFilter(File file) {
+		mFile = file;
+		load();
+	}
+
+	/**
+	 * True when this notification has already been fetched and confirmed
+	 *
+	 * @param notifyId
+	 * @return
+	 */
+	synchronized boolean isHandled(String notifyId) {
+		if (notifyId == null || !bloomMightContain(notifyId)) {
+			return false;
+		}
+		return mRecent.contains(notifyId);
+	}
+
+	/**
+	 * Records notifications that Market has acknowledged as confirmed
+	 *
+	 * @param notifyIds
+	 */
+	synchronized void markHandled(String[] notifyIds) {
+		if (notifyIds == null) {
+			return;
+		}
+		for (String notifyId : notifyIds) {
+			if (notifyId == null || !mRecent.add(notifyId)) {
+				continue;
+			}
+			bloomAdd(notifyId);
+			mDirty = true;
+		}
+		if (mRecent.size() > MAX_RECENT) {
+			int excess = mRecent.size() - MAX_RECENT;
+			Iterator<String> it = mRecent.iterator();
+			while (excess-- > 0) {
+				it.next();
+				it.remove();
+			}
+		}
+		// Evicted IDs stay in the bloom filter, rebuild it before it saturates
+		if (mBloomInserts > MAX_RECENT * 2) {
+			rebuildBloom();
+		}
+		scheduleSave();
+	}
+
+	private void scheduleSave() {
+		if (!mDirty || mSaveScheduled) {
+			return;
+		}
+		mSaveScheduled = true;
+		BillingExecutors.cpuPool().execute(new Runnable() {
+			public void run() {
+				save();
+			}
+		});
+	}
+
+	private void save() {
+		ArrayList<String> snapshot;
+		synchronized (this) {
+			mSaveScheduled = false;
+			mDirty = false;
+			snapshot = new ArrayList<String>(mRecent);
+		}
+		File tmp = new File(mFile.getPath() + ".tmp");
+		try {
+			FileOutputStream stream = new FileOutputStream(tmp);
+			BufferedWriter out = new BufferedWriter(new OutputStreamWriter(stream, "UTF-8"));
+			try {
+				for (String notifyId : snapshot) {
+					out.write(notifyId);
+					out.write('\n');
+				}
+				out.flush();
+				stream.getFD().sync();
+			} finally {
+				out.close();
+			}
+			if (!tmp.renameTo(mFile)) {
+				Log.w(TAG, "Could not save handled notifications");
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not save handled notifications", e);
+		}
+	}
+
+	private synchronized void load() {
+		if (!mFile.exists()) {
+			return;
+		}
+		try {
+			BufferedReader in = new BufferedReader(new InputStreamReader(new FileInputStream(mFile), "UTF-8"));
+			try {
+				String line;
+				while ((line = in.readLine()) != null) {
+					if (line.length() > 0) {
+						mRecent.add(line);
+					}
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "Could not load handled notifications", e);
+		}
+		rebuildBloom();
+	}
+
+	private void rebuildBloom() {
+		for (int i = 0; i < mBloom.length; i++) {
+			mBloom[i] = 0;
+		}
+		mBloomInserts = 0;
+		for (String notifyId : mRecent) {
+			bloomAdd(notifyId);
+		}
+	}
+
+	private void bloomAdd(String notifyId) {
+		int h1 = notifyId.hashCode();
+		int h2 = mix(h1);
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			int bit = ((h1 + i * h2) & 0x7fffffff) % BLOOM_BITS;
+			mBloom[bit >>> 6] |= 1L << bit;
+		}
+		mBloomInserts++;
+	}
+
+	private boolean bloomMightContain(String notifyId) {
+		int h1 = notifyId.hashCode();
+		int h2 = mix(h1);
+		for (int i = 0; i < BLOOM_HASHES; i++) {
+			int bit = ((h1 + i * h2) & 0x7fffffff) % BLOOM_BITS;
+			if ((mBloom[bit >>> 6] & (1L << bit)) == 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Second, independent hash derived from the first
+	 */
+	private static int mix(int h) {
+		h ^= h >>> 16;
+		h *= 0x85ebca6b;
+		h ^= h >>> 13;
+		h *= 0xc2b2ae35;
+		h ^= h >>> 16;
+		return h | 1;
+	}
+}
@@ -0,0 +1,271 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+
+import android.os.Handler;
+
+/**
+ * Gathers notification IDs that arrive close together so they can be sent
+ * to Market in one request.
+ * <p>
+ * The first ID added to an empty batch opens a window; the batch is sent
+ * when the window closes or as soon as it reaches the size limit, whichever
+ * comes first. A lone ID therefore waits at most one window. Duplicate IDs
+ * within a batch are sent once. A batch the sink refuses is put back and
+ * tried again one window later. IDs may be added from any thread; batches
+ * are sent on the handler's thread.
+ * <p>
+ * A batcher made adaptive with {@link #setAdaptive(long, int, int)} sizes
+ * itself from the measured latency of the request it feeds: the slower each
+ * IPC, the longer it is worth waiting and the more IDs each call should carry.
+ */
+class NotifyIdBatcher {
+
+	interface Sink {
+		/**
+		 * Sends one batch
+		 *
+		 * @param startId largest service start ID among the batched IDs
+		 * @param notifyIds
+		 * @return false if the batch could not be queued and should be tried
+		 *         again later
+		 */
+		boolean send(int startId, String[] notifyIds);
+	}
+
+	private final Handler mHandler;
+	private final Sink mSink;
+
+	private final LinkedHashSet<String> mPending = new LinkedHashSet<String>();
+	private int mStartId = -1;
+	private boolean mScheduled = false;
+
+	private volatile long mWindowMillis;
+	private volatile int mMaxBatch;
+
+	/**
+	 * Smoothing for the latency average, as a right shift: 1/4 weight to the
+	 * newest sample
+	 */
+	private static final int LATENCY_SHIFT = 2;
+
+	/**
+	 * Milliseconds of IPC latency that justify one more ID per batch
+	 */
+	private static final long MILLIS_PER_ID = 4;
+
+	private static final long MIN_WINDOW_MILLIS = 20;
+
+	private boolean mAdaptive = false;
+	private long mMaxWindowMillis;
+	private int mMinBatch;
+	private int mMaxBatchLimit;
+	/**
+	 * Moving average of the request latency, in microseconds
+	 */
+	private long mLatencyMicros = -1;
+
+	private final Runnable mFlush = new Runnable() {
+		public void run() {
+			flush();
+		}
+	};
+
+	/**
+	 * @param handler runs the sink
+	 * @param sink
+	 * @param windowMillis longest time an ID waits for others to join it
+	 * @param maxBatch batch size that is sent without waiting for the window
+	 */
+	NotifyIdBatcher(Handler handler, Sink sink, long windowMillis, int maxBatch) {
+		mHandler = handler;
+		mSink = sink;
+		mWindowMillis = windowMillis;
+		mMaxBatch = Math.max(1, maxBatch);
+	}
+
+	void setWindowMillis(long windowMillis) {
+		mWindowMillis = windowMillis;
+	}
+
+	void setMaxBatch(int maxBatch) {
+		mMaxBatch = Math.max(1, maxBatch);
+	}
+
+	/**
+	 * Lets {@link #recordLatency(long)} choose the window and batch size
+	 *
+	 * @param maxWindowMillis longest window to use
+	 * @param minBatch
+	 * @param maxBatch
+	 */
+	synchronized void setAdaptive(long maxWindowMillis, int minBatch, int maxBatch) {
+		mAdaptive = true;
+		mMaxWindowMillis = maxWindowMillis;
+		mMinBatch = Math.max(1, minBatch);
+		mMaxBatchLimit = Math.max(mMinBatch, maxBatch);
+	}
+
+	/**
+	 * Records how long one request for a batch took. For an adaptive batcher,
+	 * the window follows the average latency and the batch size grows by one
+	 * ID for every {@link #MILLIS_PER_ID} of it.
+	 *
+	 * @param millis
+	 */
+	synchronized void recordLatency(long millis) {
+		if (!mAdaptive) {
+			return;
+		}
+		long micros = Math.max(0, millis) * 1000;
+		if (mLatencyMicros < 0) {
+			mLatencyMicros = micros;
+		} else {
+			mLatencyMicros += (micros - mLatencyMicros) >> LATENCY_SHIFT;
+		}
+		long latency = mLatencyMicros / 1000;
+		mWindowMillis = Math.min(mMaxWindowMillis, Math.max(MIN_WINDOW_MILLIS, latency));
+		long batch = (latency + MILLIS_PER_ID - 1) / MILLIS_PER_ID;
+		mMaxBatch = (int) Math.min(mMaxBatchLimit, Math.max(mMinBatch, batch));
+	}
+
+	/**
+	 * Average request latency seen by {@link #recordLatency(long)}
+	 *
+	 * @return milliseconds, or -1 before the first sample
+	 */
+	synchronized long getAverageLatencyMillis() {
+		return mLatencyMicros < 0 ? -1 : mLatencyMicros / 1000;
+	}
+
+	int getMaxBatch() {
+		return mMaxBatch;
+	}
+
+	long getWindowMillis() {
+		return mWindowMillis;
+	}
+
+	/**
+	 * Adds IDs to the current batch
+	 *
+	 * @param startId service start ID the IDs arrived with, or -1
+	 * @param notifyIds
+	 */
+	void add(int startId, String[] notifyIds) {
+		if (notifyIds == null) {
+			return;
+		}
+		boolean full;
+		synchronized (this) {
+			for (String notifyId : notifyIds) {
+				if (notifyId != null) {
+					mPending.add(notifyId);
+				}
+			}
+			if (mPending.isEmpty()) {
+				return;
+			}
+			mStartId = Math.max(mStartId, startId);
+			full = mPending.size() >= mMaxBatch;
+			if (!full && mScheduled) {
+				return;
+			}
+			if (!full) {
+				mScheduled = true;
+			}
+		}
+		if (full) {
+			cancel(mFlush);
+			post(mFlush, 0);
+		} else {
+			post(mFlush, mWindowMillis);
+		}
+	}
+
+	/**
+	 * Runs r on the handler's thread after delayMillis
+	 *
+	 * @param r
+	 * @param delayMillis
+	 */
+	void post(Runnable r, long delayMillis) {
+		mHandler.postDelayed(r, delayMillis);
+	}
+
+	void cancel(Runnable r) {
+		mHandler.removeCallbacks(r);
+	}
+
+	/**
+	 * Number of IDs waiting to be sent
+	 *
+	 * @return
+	 */
+	synchronized int size() {
+		return mPending.size();
+	}
+
+	/**
+	 * Sends everything gathered so far, at most {@link #setMaxBatch(int)} IDs
+	 * per request
+	 */
+	void flush() {
+		while (true) {
+			String[] batch;
+			int startId;
+			synchronized (this) {
+				mScheduled = false;
+				if (mPending.isEmpty()) {
+					return;
+				}
+				batch = new String[Math.min(mPending.size(), mMaxBatch)];
+				Iterator<String> it = mPending.iterator();
+				for (int i = 0; i < batch.length; i++) {
+					batch[i] = it.next();
+					it.remove();
+				}
+				startId = mStartId;
+				if (mPending.isEmpty()) {
+					mStartId = -1;
+				}
+			}
+			if (!mSink.send(startId, batch)) {
+				retry(startId, batch);
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Puts a refused batch back and schedules another flush one window later
+	 */
+	private void retry(int startId, String[] batch) {
+		synchronized (this) {
+			for (String notifyId : batch) {
+				mPending.add(notifyId);
+			}
+			mStartId = Math.max(mStartId, startId);
+			if (mScheduled) {
+				return;
+			}
+			mScheduled = true;
+		}
+		post(mFlush, mWindowMillis);
+	}
+}
@@ -0,0 +1,264 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.LinkedHashSet;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.util.Log;
+
+import com.gummagames.payments.Util;
+
+/**
+ * Billing work that could not be sent because the device was offline.
+ * <p>
+ * Restore, confirm and purchase information requests are kept in shared
+ * preferences so they survive the process being killed. While anything is
+ * queued and the device is offline a connectivity receiver is registered;
+ * when the network returns the whole outbox is handed to the billing service
+ * as one merged batch, one request per type, instead of replaying every call
+ * that was made offline.
+ */
+class OfflineOutbox {
+
+	private static final String TAG = "OfflineOutbox";
+	static final String PREFS_NAME = "gumma_billing_outbox";
+
+	private static final String KEY_CONFIRM = "confirm";
+	private static final String KEY_INFO = "info";
+	private static final String KEY_RESTORE = "restore";
+	private static final String KEY_CHECK_SUPPORTED = "check_supported";
+
+	private static OfflineOutbox sInstance = null;
+
+	/**
+	 * Work taken from the outbox in one drain
+	 */
+	static final class Batch {
+		final String[] confirmIds;
+		final String[] infoIds;
+		final boolean restore;
+		final boolean checkSupported;
+
+		Batch(String[] confirmIds, String[] infoIds, boolean restore, boolean checkSupported) {
+			this.confirmIds = confirmIds;
+			this.infoIds = infoIds;
+			this.restore = restore;
+			this.checkSupported = checkSupported;
+		}
+	}
+
+	private final Context mContext;
+	private final SharedPreferences mPrefs;
+
+	private final LinkedHashSet<String> mConfirmIds = new LinkedHashSet<String>();
+	private final LinkedHashSet<String> mInfoIds = new LinkedHashSet<String>();
+	private boolean mRestore = false;
+	private boolean mCheckSupported = false;
+
+	/**
+	 * Service that runs the batch once connectivity returns
+	 */
+	private MarketBillingService mTarget = null;
+	private boolean mListening = false;
+
+	private final BroadcastReceiver mReceiver = new BroadcastReceiver() {
+		@Override
+		public void onReceive(Context context, Intent intent) {
+			if (Util.isNetworkConnected(mContext)) {
+				drain();
+			}
+		}
+	};
+
+	static synchronized OfflineOutbox get(Context context) {
+		if (sInstance == null) {
+			sInstance = new OfflineOutbox(context.getApplicationContext());
+		}
+		return sInstance;
+	}
+
+	private OfflineOutbox(Context context) {
+		mContext = context;
+		mPrefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		load();
+	}
+
+	/**
+	 * Sets the service that will run the batch. If work survived from an
+	 * earlier process and the device is offline, starts waiting for
+	 * connectivity.
+	 *
+	 * @param target
+	 */
+	synchronized void attach(MarketBillingService target) {
+		mTarget = target;
+		if (!isEmpty()) {
+			listen();
+		}
+	}
+
+	synchronized void queueConfirm(String[] notifyIds) {
+		if (addAll(mConfirmIds, notifyIds)) {
+			saveAndListen();
+		}
+	}
+
+	synchronized void queuePurchaseInformation(String[] notifyIds) {
+		if (addAll(mInfoIds, notifyIds)) {
+			saveAndListen();
+		}
+	}
+
+	synchronized void queueRestore() {
+		mRestore = true;
+		saveAndListen();
+	}
+
+	synchronized void queueCheckSupported() {
+		if (mCheckSupported) {
+			return;
+		}
+		mCheckSupported = true;
+		saveAndListen();
+	}
+
+	synchronized boolean isEmpty() {
+		return mConfirmIds.isEmpty() && mInfoIds.isEmpty() && !mRestore && !mCheckSupported;
+	}
+
+	/**
+	 * Removes everything from the outbox and runs it on the target service
+	 */
+	void drain() {
+		Batch batch;
+		MarketBillingService target;
+		synchronized (this) {
+			target = mTarget;
+			if (target == null) {
+				return;
+			}
+			stopListening();
+			if (isEmpty()) {
+				return;
+			}
+			batch = new Batch(mConfirmIds.toArray(new String[mConfirmIds.size()]),
+					mInfoIds.toArray(new String[mInfoIds.size()]), mRestore, mCheckSupported);
+			mConfirmIds.clear();
+			mInfoIds.clear();
+			mRestore = false;
+			mCheckSupported = false;
+			save();
+		}
+		Log.i(TAG, "Connectivity restored, sending " + batch.infoIds.length + " info, "
+				+ batch.confirmIds.length + " confirm" + (batch.restore ? ", restore" : ""));
+		target.runOfflineBatch(batch);
+	}
+
+	private static boolean addAll(LinkedHashSet<String> set, String[] notifyIds) {
+		boolean changed = false;
+		if (notifyIds != null) {
+			for (String notifyId : notifyIds) {
+				if (notifyId != null && set.add(notifyId)) {
+					changed = true;
+				}
+			}
+		}
+		return changed;
+	}
+
+	private void saveAndListen() {
+		save();
+		listen();
+	}
+
+	/**
+	 * Registers for connectivity changes while the device is offline.
+	 * CONNECTIVITY_ACTION is sticky, so registering while online would fire
+	 * the receiver straight away, and work that failed for any other reason
+	 * would be drained and queued again in a loop. Work queued while online
+	 * is sent by the billing service on its next connection to Market.
+	 */
+	private void listen() {
+		if (mListening || mTarget == null || Util.isNetworkConnected(mContext)) {
+			return;
+		}
+		mContext.registerReceiver(mReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
+		mListening = true;
+	}
+
+	private void stopListening() {
+		if (!mListening) {
+			return;
+		}
+		mListening = false;
+		try {
+			mContext.unregisterReceiver(mReceiver);
+		} catch (IllegalArgumentException e) {
+			// Already unregistered
+		}
+	}
+
+	private void save() {
+		SharedPreferences.Editor editor = mPrefs.edit();
+		editor.putString(KEY_CONFIRM, join(mConfirmIds));
+		editor.putString(KEY_INFO, join(mInfoIds));
+		editor.putBoolean(KEY_RESTORE, mRestore);
+		editor.putBoolean(KEY_CHECK_SUPPORTED, mCheckSupported);
+		if (!editor.commit()) {
+			Log.w(TAG, "Could not save offline billing work");
+		}
+	}
+
+	private void load() {
+		split(mPrefs.getString(KEY_CONFIRM, null), mConfirmIds);
+		split(mPrefs.getString(KEY_INFO, null), mInfoIds);
+		mRestore = mPrefs.getBoolean(KEY_RESTORE, false);
+		mCheckSupported = mPrefs.getBoolean(KEY_CHECK_SUPPORTED, false);
+	}
+
+	private static String join(LinkedHashSet<String> ids) {
+		StringBuilder sb = new StringBuilder();
+		for (String id : ids) {
+			if (sb.length() > 0) {
+				sb.append('\n');
+			}
+			sb.append(id);
+		}
+		return sb.toString();
+	}
+
+	private static void split(String value, LinkedHashSet<String> ids) {
+		if (value == null || value.length() == 0) {
+			return;
+		}
+		int start = 0;
+		while (start <= value.length()) {
+			int end = value.indexOf('\n', start);
+			if (end < 0) {
+				end = value.length();
+			}
+			if (end > start) {
+				ids.add(value.substring(start, end));
+			}
+			start = end + 1;
+		}
+	}
+}
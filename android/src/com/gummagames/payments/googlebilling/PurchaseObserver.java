@@ -17,7 +17,8 @@
 package com.gummagames.payments.googlebilling;
 
 import java.lang.reflect.Method;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.Activity;
 import android.app.PendingIntent;
@@ -29,9 +30,10 @@ import android.os.Handler;
 import android.util.Log;
 
 import com.gummagames.payments.BillingProvider;
-import com.gummagames.payments.BillingResponseCode;
 import com.gummagames.payments.PaidProduct;
+import com.gummagames.payments.PurchaseEvent;
 import com.gummagames.payments.BillingProvider.BillingResponseListener;
+import com.gummagames.payments.BillingProvider.RestoreTransactionsListener;
 import com.gummagames.payments.PurchaseManager.BillingService;
 import com.gummagames.payments.PurchaseState;
 
@@ -40,7 +42,7 @@ import com.gummagames.payments.PurchaseState;
  * extends this class and registers an instance of that derived class with
  * {@link ResponseHandler}. The main application implements the callbacks
  * {@link #onBillingSupported(boolean)} and
- * {@link #onPurchaseStateChange(PurchaseState, String, int, long)}.  These methods
+ * {@link #onPurchaseStateChange(PurchaseEvent)}.  These methods
  * are used to update the UI.
  */
 class PurchaseObserver {
@@ -55,7 +57,7 @@ class PurchaseObserver {
     };
     
     
-	private LinkedList<BillingProvider.BillingResponseListener> mEventListeners = new LinkedList<BillingProvider.BillingResponseListener>();
+	private ArrayList<BillingProvider.BillingResponseListener> mEventListeners = new ArrayList<BillingProvider.BillingResponseListener>();
 
 	public void attachBillingResponseListener(BillingResponseListener listener) {
 		mEventListeners.add(listener);
@@ -91,37 +93,19 @@ class PurchaseObserver {
      * (if the purchase was for a Market-managed item), or if the purchase
      * was refunded, or the charge was canceled.  This handles the UI
      * update.  The database update is handled in
-     * {@link ResponseHandler#purchaseResponse(Context, PurchaseState,
-     * String, String, long)}.
-     * @param purchaseState the purchase state of the item
-     * @param itemId a string identifying the item (the "SKU")
-     * @param quantity the current quantity of this item after the purchase
-     * @param purchaseTime the time the product was purchased, in
-     * milliseconds since the epoch (Jan 1, 1970)
+     * {@link ResponseHandler#purchaseResponse(Context, PurchaseEvent)}.
+     * @param event the purchase event; its response code is the ordinal of
+     * the purchase state.  The caller recycles the event after this returns.
      */
-    public void onPurchaseStateChange(PurchaseState purchaseState,
-            String itemId, int quantity, long purchaseTime, String developerPayload){
-
-    	int purchaseResponseCode = purchaseState.ordinal();
-		PaidProduct pp = new PaidProduct(itemId, developerPayload);
-		
-    	for(BillingProvider.BillingResponseListener listener : mEventListeners){
-    		
-    		if(purchaseResponseCode == BillingResponseCode.OK) {
-    			listener.onPurchaseSuccess(pp, purchaseResponseCode);
-    		}
-    		else{
-    			listener.onPurchaseFailed(pp, purchaseResponseCode);
-    		}
-    	}
-
+    public void onPurchaseStateChange(PurchaseEvent event){
+    	event.deliverTo(mEventListeners);
     }
 
     /**
      * This is called when we receive a response code from Market for a
      * RequestPurchase request that we made.  This is NOT used for any
      * purchase state changes.  All purchase state changes are received in
-     * {@link #onPurchaseStateChange(PurchaseState, String, int, long)}.
+     * {@link #onPurchaseStateChange(PurchaseEvent)}.
      * This is used for reporting various errors, or if the user backed out
      * and didn't purchase the item.  The possible response codes are:
      *   RESULT_OK means that the order was sent successfully to the server.
@@ -139,28 +123,54 @@ class PurchaseObserver {
      *       catalog.
      *   RESULT_ERROR is used for any other errors (such as a server error).
      */
-    public void onRequestPurchaseResponse(PaidProduct product, int responseCode){
-    	for(BillingProvider.BillingResponseListener listener : mEventListeners){
-    		
-    		if(responseCode == BillingResponseCode.OK) {
-    			listener.onPurchaseSuccess(product, responseCode);
-    		}
-    		else{
-    			listener.onPurchaseFailed(product, responseCode);
-    		}
+    public void onRequestPurchaseResponse(PurchaseEvent event){
+    	if (event.isSuccess()) {
+    		// The outcome arrives later through onPurchaseStateChange
+    		return;
     	}
+    	event.deliverTo(mEventListeners);
     }
 
     /**
      * This is called when we receive a response code from Android Market for a
      * RestoreTransactions request that we made.  A response code of
-     * RESULT_OK means that the request was successfully sent to the server.
+     * RESULT_OK means that the request was successfully sent to the server;
+     * restored purchases may still be on their way.
      */
-    public void onRestoreTransactionsResponse(PaidProduct product, int responseCode){
+    public void onRestoreTransactionsResponse(int responseCode){
     	for(BillingProvider.BillingResponseListener listener : mEventListeners){
-//    		listener.onBillingSupported(supported);
+    		if (listener instanceof RestoreTransactionsListener) {
+    			((RestoreTransactionsListener) listener).onRestoreTransactionsAccepted(responseCode);
+    		}
+    	}
+    }
+
+    /**
+     * This is called with each chunk of purchases restored by a
+     * RestoreTransactions request.  {@link RestoreTransactionsListener}s get
+     * the chunk; other listeners get one purchase event per restored order.
+     * @param purchases verified purchases
+     */
+    public void onRestoredPurchases(List<PaidProduct> purchases){
+    	ArrayList<BillingResponseListener> others = null;
+    	for(BillingProvider.BillingResponseListener listener : mEventListeners){
+    		if (listener instanceof RestoreTransactionsListener) {
+    			((RestoreTransactionsListener) listener).onRestoredPurchases(purchases);
+    		} else {
+    			if (others == null) {
+    				others = new ArrayList<BillingResponseListener>();
+    			}
+    			others.add(listener);
+    		}
+    	}
+    	if (others == null) {
+    		return;
+    	}
+    	for (PaidProduct product : purchases) {
+    		PurchaseEvent event = PurchaseEvent.obtain(product);
+    		event.deliverTo(others);
+    		event.recycle();
     	}
-    	
     }
 
     private void initCompatibilityLayer() {
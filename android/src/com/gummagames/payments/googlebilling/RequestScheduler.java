@@ -0,0 +1,175 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.SystemClock;
+
+/**
+ * Queue of billing requests waiting to be sent, ordered by priority class.
+ * <p>
+ * Each class has its own lock-free FIFO. The next request is the head with
+ * the best effective priority, where every {@link #AGING_MILLIS} a request
+ * has waited counts as one class better, so background work cannot be
+ * starved by a steady stream of interactive requests. Each class also has a
+ * limit on queued requests; offers beyond it are refused so a flood of
+ * background work cannot build an unbounded backlog.
+ * <p>
+ * Any thread may offer. Only one thread at a time may call {@link #peek()}
+ * and {@link #remove(Object)}.
+ *
+ * @param <T>
+ */
+class RequestScheduler<T> {
+
+	/**
+	 * User-initiated requests the user is waiting on, such as purchases
+	 */
+	static final int INTERACTIVE = 0;
+	static final int CONFIRM = 1;
+	static final int INFO = 2;
+	static final int RESTORE = 3;
+	static final int CLASSES = 4;
+
+	/**
+	 * Waiting this long raises a request by one priority class
+	 */
+	static final long AGING_MILLIS = 1000;
+
+	private static final int[] DEFAULT_LIMITS = { 8, 32, 32, 1 };
+
+	private static final class Entry<T> {
+		final T mItem;
+		final long mEnqueuedAt;
+
+		Entry(T item, long enqueuedAt) {
+			mItem = item;
+			mEnqueuedAt = enqueuedAt;
+		}
+	}
+
+	private final ConcurrentLinkedQueue<Entry<T>>[] mQueues;
+	private final AtomicInteger[] mSizes;
+	private final int[] mLimits;
+
+	RequestScheduler() {
+		this(DEFAULT_LIMITS);
+	}
+
+	@SuppressWarnings({"unchecked", "rawtypes"})
+	RequestScheduler(int[] limits) {
+		mQueues = new ConcurrentLinkedQueue[CLASSES];
+		mSizes = new AtomicInteger[CLASSES];
+		mLimits = limits.clone();
+		for (int i = 0; i < CLASSES; i++) {
+			mQueues[i] = new ConcurrentLinkedQueue<Entry<T>>();
+			mSizes[i] = new AtomicInteger();
+		}
+	}
+
+	/**
+	 * Queues item in a priority class
+	 *
+	 * @param item
+	 * @param priority one of {@link #INTERACTIVE}, {@link #CONFIRM},
+	 *          {@link #INFO} or {@link #RESTORE}
+	 * @return false if the class is full
+	 */
+	boolean offer(T item, int priority) {
+		AtomicInteger size = mSizes[priority];
+		while (true) {
+			int current = size.get();
+			if (current >= mLimits[priority]) {
+				return false;
+			}
+			if (size.compareAndSet(current, current + 1)) {
+				break;
+			}
+		}
+		mQueues[priority].add(new Entry<T>(item, now()));
+		return true;
+	}
+
+	/**
+	 * The request to send next, left in the queue
+	 *
+	 * @return null if nothing is queued
+	 */
+	T peek() {
+		long now = now();
+		Entry<T> best = null;
+		long bestScore = Long.MAX_VALUE;
+		for (int i = 0; i < CLASSES; i++) {
+			Entry<T> head = mQueues[i].peek();
+			if (head == null) {
+				continue;
+			}
+			long score = i * AGING_MILLIS - (now - head.mEnqueuedAt);
+			if (score < bestScore) {
+				best = head;
+				bestScore = score;
+			}
+		}
+		return best == null ? null : best.mItem;
+	}
+
+	/**
+	 * Removes item, which must be the one just returned by {@link #peek()}
+	 *
+	 * @param item
+	 * @return false if item is not at the head of any class
+	 */
+	boolean remove(T item) {
+		for (int i = 0; i < CLASSES; i++) {
+			Entry<T> head = mQueues[i].peek();
+			if (head != null && head.mItem == item) {
+				mQueues[i].poll();
+				mSizes[i].decrementAndGet();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Number of queued requests in a priority class
+	 *
+	 * @param priority
+	 * @return
+	 */
+	int size(int priority) {
+		return mSizes[priority].get();
+	}
+
+	boolean isEmpty() {
+		for (int i = 0; i < CLASSES; i++) {
+			if (mSizes[i].get() > 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Clock used for aging, in milliseconds
+	 *
+	 * @return
+	 */
+	long now() {
+		return SystemClock.elapsedRealtime();
+	}
+}
@@ -17,15 +17,18 @@
 package com.gummagames.payments.googlebilling;
 
 import java.security.Security;
+import java.util.ArrayList;
+import java.util.List;
 
 import android.app.PendingIntent;
 import android.content.Context;
 import android.content.Intent;
 import android.util.Log;
 
+import com.gummagames.payments.BillingExecutors;
 import com.gummagames.payments.PaidProduct;
+import com.gummagames.payments.PurchaseEvent;
 import com.gummagames.payments.PurchaseManager.BillingService;
-import com.gummagames.payments.PurchaseState;
 import com.gummagames.payments.googlebilling.MarketBillingService.RequestPurchase;
 import com.gummagames.payments.googlebilling.MarketBillingService.RestoreTransactions;
 
@@ -39,16 +42,25 @@ import com.gummagames.payments.googlebilling.MarketBillingService.RestoreTransac
  * not do that.
  *
  * You should modify and obfuscate this code before using it.
+ *
+ * Responses arrive on the billing worker thread. Every observer callback is
+ * posted to the main thread, so listeners can touch the UI directly.
  */
 public class ResponseHandler {
     private static final String TAG = "ResponseHandler";
 
+    /**
+     * Restored purchases are posted to the UI thread this many at a time, so
+     * one callback never holds the UI thread for long
+     */
+    static final int RESTORE_CHUNK_SIZE = 20;
+
     /**
      * This is a static instance of {@link PurchaseObserver} that the
      * application creates and registers with this class. The PurchaseObserver
      * is used for updating the UI if the UI is visible.
      */
-    private static PurchaseObserver sPurchaseObserver;
+    private static volatile PurchaseObserver sPurchaseObserver;
 
     /**
      * Registers an observer that updates the UI.
@@ -72,10 +84,15 @@ public class ResponseHandler {
      * {@link BillingService#checkBillingSupported()}.
      * @param supported true if in-app billing is supported.
      */
-    public static void checkBillingSupportedResponse(boolean supported) {
-        if (sPurchaseObserver != null) {
-            sPurchaseObserver.onBillingSupported(supported);
-        }
+    public static void checkBillingSupportedResponse(final boolean supported) {
+        BillingExecutors.postToMain(new Runnable() {
+            public void run() {
+                PurchaseObserver observer = sPurchaseObserver;
+                if (observer != null) {
+                    observer.onBillingSupported(supported);
+                }
+            }
+        });
     }
 
     /**
@@ -88,14 +105,19 @@ public class ResponseHandler {
      * @param intent an intent containing a request id in an extra field that
      *     will be passed to the buy page activity when it is created
      */
-    public static void buyPageIntentResponse(PendingIntent pendingIntent, Intent intent) {
-        if (sPurchaseObserver == null) {
-            if (Consts.DEBUG) {
-                Log.d(TAG, "UI is not running");
+    public static void buyPageIntentResponse(final PendingIntent pendingIntent, final Intent intent) {
+        BillingExecutors.postToMain(new Runnable() {
+            public void run() {
+                PurchaseObserver observer = sPurchaseObserver;
+                if (observer == null) {
+                    if (Consts.DEBUG) {
+                        Log.d(TAG, "UI is not running");
+                    }
+                    return;
+                }
+                observer.startBuyPageActivity(pendingIntent, intent);
             }
-            return;
-        }
-        sPurchaseObserver.startBuyPageActivity(pendingIntent, intent);
+        });
     }
 
     /**
@@ -108,22 +130,25 @@ public class ResponseHandler {
      * the user has purchased an item, in which case the BillingService will
      * also call this method. Finally, this method can be called if the item
      * was refunded.
-     * @param purchaseState the state of the purchase request (PURCHASED,
-     *     CANCELED, or REFUNDED)
-     * @param productId a string identifying a product for sale
-     * @param orderId a string identifying the order
-     * @param purchaseTime the time the product was purchased, in milliseconds
-     *     since the epoch (Jan 1, 1970)
-     * @param developerPayload the developer provided "payload" associated with
-     *     the order
+     * @param context the context
+     * @param event the purchase state (PURCHASED, CANCELED, or REFUNDED),
+     *     product, order and developer payload of the change.  The event is
+     *     recycled on the main thread once the listeners have been notified.
      */
-    public static void purchaseResponse(
-            final Context context, final PurchaseState purchaseState, final String productId,
-            final String orderId, final long purchaseTime, final String developerPayload) {
+    public static void purchaseResponse(final Context context, final PurchaseEvent event) {
 
-		Log.d("Handler", "Got purchaseResponse: " + productId);
-    	
-    	sPurchaseObserver.onPurchaseStateChange(purchaseState, productId, 1, purchaseTime, developerPayload);
+        if (Consts.DEBUG) {
+            Log.d("Handler", "Got purchaseResponse: " + event.productId);
+        }
+        BillingExecutors.postToMain(new Runnable() {
+            public void run() {
+                PurchaseObserver observer = sPurchaseObserver;
+                if (observer != null) {
+                    observer.onPurchaseStateChange(event);
+                }
+                event.recycle();
+            }
+        });
     }
 
     /**
@@ -140,10 +165,16 @@ public class ResponseHandler {
      * of the request
      */
     public static void responseCodeReceived(Context context, RequestPurchase request, int responseCode) {
-        if (sPurchaseObserver != null) {
-        	PaidProduct product = new PaidProduct(request.mProductId, request.mDeveloperPayload);
-            sPurchaseObserver.onRequestPurchaseResponse(product, responseCode);
-        }
+        final PurchaseEvent event = PurchaseEvent.obtain(request.mProductId, request.mDeveloperPayload, responseCode);
+        BillingExecutors.postToMain(new Runnable() {
+            public void run() {
+                PurchaseObserver observer = sPurchaseObserver;
+                if (observer != null) {
+                    observer.onRequestPurchaseResponse(event);
+                }
+                event.recycle();
+            }
+        });
     }
 
     /**
@@ -155,10 +186,35 @@ public class ResponseHandler {
      * @param responseCode a response code from Market to indicate the state
      *     of the request
      */
-    public static void responseCodeReceived(Context context, RestoreTransactions request, int responseCode) {
-        if (sPurchaseObserver != null) {
-        	PaidProduct product = new PaidProduct("foo", null);
-            sPurchaseObserver.onRestoreTransactionsResponse(product, responseCode);
+    public static void responseCodeReceived(Context context, RestoreTransactions request, final int responseCode) {
+        BillingExecutors.postToMain(new Runnable() {
+            public void run() {
+                PurchaseObserver observer = sPurchaseObserver;
+                if (observer != null) {
+                    observer.onRestoreTransactionsResponse(responseCode);
+                }
+            }
+        });
+    }
+
+    /**
+     * Delivers the purchases from one restored payload, in chunks of
+     * {@link #RESTORE_CHUNK_SIZE}, each posted separately to the UI thread.
+     * @param context the context
+     * @param purchases verified purchases from one signed payload
+     */
+    public static void restoredPurchases(Context context, List<PaidProduct> purchases) {
+        for (int start = 0; start < purchases.size(); start += RESTORE_CHUNK_SIZE) {
+            final ArrayList<PaidProduct> chunk = new ArrayList<PaidProduct>(purchases.subList(start,
+                    Math.min(start + RESTORE_CHUNK_SIZE, purchases.size())));
+            BillingExecutors.postToMain(new Runnable() {
+                public void run() {
+                    PurchaseObserver observer = sPurchaseObserver;
+                    if (observer != null) {
+                        observer.onRestoredPurchases(chunk);
+                    }
+                }
+            });
         }
     }
 }
@@ -0,0 +1,153 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.Random;
+
+import android.os.SystemClock;
+
+import com.gummagames.payments.BillingResponseCode;
+
+/**
+ * How a type of billing request is retried after a transient failure: how
+ * many times it may be sent, and how long to wait before each resend.
+ * <p>
+ * Delays grow exponentially with jitter. Every retry must also take a token
+ * from a shared {@link Budget}, so a Market crash that fails every request
+ * at once produces a trickle of retries rather than a burst.
+ */
+final class RetryPolicy {
+
+	/**
+	 * Sent once, never retried
+	 */
+	static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, false);
+
+	/**
+	 * Purchases and supported checks: a user is waiting, so retry a dead
+	 * binder once and leave response codes to the caller. A purchase that
+	 * reached Market is never resent, which would show the buy page twice.
+	 */
+	static final RetryPolicy INTERACTIVE = new RetryPolicy(2, 500, 2000, false);
+
+	/**
+	 * Confirmations must get through or Market redelivers the purchase
+	 */
+	static final RetryPolicy CONFIRM = new RetryPolicy(6, 2000, 60 * 1000, true);
+
+	static final RetryPolicy INFO = new RetryPolicy(5, 2000, 60 * 1000, true);
+
+	static final RetryPolicy RESTORE = new RetryPolicy(3, 5000, 60 * 1000, true);
+
+	private static final Random sRandom = new Random();
+
+	final int maxAttempts;
+	final long baseDelayMillis;
+	final long maxDelayMillis;
+
+	/**
+	 * Whether SERVICE_UNAVAILABLE and ERROR response codes are retried, as
+	 * well as dead binders
+	 */
+	final boolean retryResponseCodes;
+
+	RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, boolean retryResponseCodes) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.retryResponseCodes = retryResponseCodes;
+	}
+
+	/**
+	 * True when a request that has been sent attempts times may go again
+	 *
+	 * @param attempts
+	 * @return
+	 */
+	boolean canRetry(int attempts) {
+		return attempts < maxAttempts;
+	}
+
+	/**
+	 * True for response codes that may succeed if the request is resent
+	 *
+	 * @param responseCode
+	 * @return
+	 */
+	boolean isRetryable(int responseCode) {
+		return retryResponseCodes
+				&& (responseCode == BillingResponseCode.SERVICE_UNAVAILABLE || responseCode == BillingResponseCode.ERROR);
+	}
+
+	/**
+	 * Delay before resending after the given number of attempts: a random
+	 * time between half and all of base * 2^(attempts - 1), capped at the
+	 * policy maximum
+	 *
+	 * @param attempts
+	 * @return
+	 */
+	long delayMillis(int attempts) {
+		long ceiling = baseDelayMillis << Math.min(Math.max(attempts - 1, 0), 16);
+		ceiling = Math.min(ceiling, maxDelayMillis);
+		long half = ceiling / 2;
+		double r;
+		synchronized (sRandom) {
+			r = sRandom.nextDouble();
+		}
+		return half + (long) (r * (ceiling - half));
+	}
+
+	/**
+	 * Retry tokens shared by all requests. The bucket holds at most capacity
+	 * tokens and regains one every refill period.
+	 */
+	static final class Budget {
+		private final int mCapacity;
+		private final long mRefillMillis;
+		private int mTokens;
+		private long mLastRefill;
+
+		Budget(int capacity, long refillMillis) {
+			mCapacity = capacity;
+			mRefillMillis = refillMillis;
+			mTokens = capacity;
+			mLastRefill = SystemClock.elapsedRealtime();
+		}
+
+		/**
+		 * Takes a token for one retry
+		 *
+		 * @return false if the budget is spent
+		 */
+		synchronized boolean tryAcquire() {
+			long now = SystemClock.elapsedRealtime();
+			long refills = (now - mLastRefill) / mRefillMillis;
+			if (refills > 0) {
+				mTokens = (int) Math.min(mCapacity, mTokens + refills);
+				mLastRefill += refills * mRefillMillis;
+			}
+			if (mTokens == 0) {
+				return false;
+			}
+			mTokens--;
+			return true;
+		}
+
+		synchronized int available() {
+			return mTokens;
+		}
+	}
+}
@@ -0,0 +1,242 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.security.InvalidKeyException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PublicKey;
+import java.security.Signature;
+import java.security.SignatureException;
+
+import android.util.Log;
+
+/**
+ * Reusable signature verification engine for a single public key.
+ * The key is parsed once by the caller, and each thread keeps its own
+ * initialized {@link Signature} along with scratch buffers for the UTF-8
+ * encoded signed data and the Base64 decoded signature, so steady-state
+ * verification does not allocate.
+ */
+class SignatureVerifier {
+
+	private static final String LOGTAG = Auth.LOGTAG;
+	static final String SIGNATURE_ALGORITHM = "SHA1withRSA";
+
+	/**
+	 * Scratch buffers larger than this are not kept between calls
+	 */
+	private static final int MAX_RETAINED_BUFFER = 256 * 1024;
+
+	private static final byte SKIP = -2;
+	private static final byte INVALID = -1;
+	private static final byte[] BASE64_VALUES = new byte[128];
+
+	static {
+		for (int i = 0; i < BASE64_VALUES.length; i++) {
+			BASE64_VALUES[i] = INVALID;
+		}
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			BASE64_VALUES[alphabet.charAt(i)] = (byte) i;
+		}
+		BASE64_VALUES[' '] = SKIP;
+		BASE64_VALUES['\t'] = SKIP;
+		BASE64_VALUES['\r'] = SKIP;
+		BASE64_VALUES['\n'] = SKIP;
+	}
+
+	/**
+	 * Per-thread scratch space shared by every verifier on that thread
+	 */
+	private static final class Scratch {
+		byte[] data = new byte[4096];
+		byte[] signature = new byte[512];
+	}
+
+	private static final ThreadLocal<Scratch> sScratch = new ThreadLocal<Scratch>() {
+		@Override
+		protected Scratch initialValue() {
+			return new Scratch();
+		}
+	};
+
+	private final PublicKey mPublicKey;
+
+	/**
+	 * Signature engines already initialized with {@link #mPublicKey}
+	 */
+	private final ThreadLocal<Signature> mSignature = new ThreadLocal<Signature>() {
+		@Override
+		protected Signature initialValue() {
+			return newSignature();
+		}
+	};
+
+	SignatureVerifier(PublicKey publicKey) {
+		if (publicKey == null) {
+			throw new IllegalArgumentException("publicKey");
+		}
+		mPublicKey = publicKey;
+	}
+
+	PublicKey getPublicKey() {
+		return mPublicKey;
+	}
+
+	/**
+	 * Verifies the Base64 encoded signature against the UTF-8 bytes of signedData
+	 *
+	 * @param signedData
+	 * @param signature
+	 * @return true if the data and signature match
+	 */
+	boolean verify(String signedData, String signature) {
+		if (signedData == null || signature == null) {
+			return false;
+		}
+		Signature sig = mSignature.get();
+		if (sig == null) {
+			return false;
+		}
+		Scratch scratch = sScratch.get();
+
+		int sigLength = decodeBase64(signature, scratch);
+		if (sigLength < 0) {
+			Log.e(LOGTAG, "Base64 decoding failed.");
+			return false;
+		}
+		int dataLength = encodeUtf8(signedData, scratch);
+
+		try {
+			sig.update(scratch.data, 0, dataLength);
+			if (!sig.verify(scratch.signature, 0, sigLength)) {
+				Log.e(LOGTAG, "Signature verification failed.");
+				return false;
+			}
+			return true;
+		} catch (SignatureException e) {
+			Log.e(LOGTAG, "Signature exception.");
+			// The engine may be left mid-operation, start over with a fresh one
+			mSignature.remove();
+		} catch (IllegalArgumentException e) {
+			Log.e(LOGTAG, "Invalid key specification.");
+			mSignature.remove();
+		} finally {
+			if (scratch.data.length > MAX_RETAINED_BUFFER) {
+				scratch.data = new byte[4096];
+			}
+		}
+		return false;
+	}
+
+	private Signature newSignature() {
+		try {
+			Signature sig = Signature.getInstance(SIGNATURE_ALGORITHM);
+			sig.initVerify(mPublicKey);
+			return sig;
+		} catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		} catch (InvalidKeyException e) {
+			Log.e(LOGTAG, "Invalid key specification.");
+			return null;
+		}
+	}
+
+	/**
+	 * Encodes the string as UTF-8 into the scratch data buffer
+	 *
+	 * @return number of bytes written
+	 */
+	private static int encodeUtf8(String s, Scratch scratch) {
+		int length = s.length();
+		byte[] out = scratch.data;
+		if (out.length < length * 3) {
+			out = new byte[length * 3];
+			scratch.data = out;
+		}
+
+		int pos = 0;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c < 0x80) {
+				out[pos++] = (byte) c;
+			} else if (c < 0x800) {
+				out[pos++] = (byte) (0xc0 | (c >> 6));
+				out[pos++] = (byte) (0x80 | (c & 0x3f));
+			} else if (Character.isHighSurrogate(c) && i + 1 < length
+					&& Character.isLowSurrogate(s.charAt(i + 1))) {
+				int cp = Character.toCodePoint(c, s.charAt(++i));
+				out[pos++] = (byte) (0xf0 | (cp >> 18));
+				out[pos++] = (byte) (0x80 | ((cp >> 12) & 0x3f));
+				out[pos++] = (byte) (0x80 | ((cp >> 6) & 0x3f));
+				out[pos++] = (byte) (0x80 | (cp & 0x3f));
+			} else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+				// Unpaired surrogate, same replacement String.getBytes() uses
+				out[pos++] = (byte) '?';
+			} else {
+				out[pos++] = (byte) (0xe0 | (c >> 12));
+				out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+				out[pos++] = (byte) (0x80 | (c & 0x3f));
+			}
+		}
+		return pos;
+	}
+
+	/**
+	 * Decodes standard Base64 into the scratch signature buffer.
+	 * Whitespace is ignored, as with {@link android.util.Base64#DEFAULT}
+	 *
+	 * @return number of bytes decoded, or -1 if the input is not valid Base64
+	 */
+	private static int decodeBase64(String s, Scratch scratch) {
+		int length = s.length();
+		int maxOut = (length / 4 + 1) * 3;
+		byte[] out = scratch.signature;
+		if (out.length < maxOut) {
+			out = new byte[maxOut];
+			scratch.signature = out;
+		}
+
+		int pos = 0;
+		int accum = 0;
+		int bits = 0;
+		boolean padding = false;
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			if (c == '=') {
+				padding = true;
+				continue;
+			}
+			int value = c < 128 ? BASE64_VALUES[c] : INVALID;
+			if (value == SKIP) {
+				continue;
+			}
+			if (value == INVALID || padding) {
+				return -1;
+			}
+			accum = (accum << 6) | value;
+			bits += 6;
+			if (bits >= 8) {
+				bits -= 8;
+				out[pos++] = (byte) (accum >> bits);
+			}
+		}
+		// Six left-over bits can never form a byte
+		if (bits >= 6) {
+			return -1;
+		}
+		return pos;
+	}
+}
@@ -0,0 +1,226 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.ArrayList;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+/**
+ * Hashed timer wheel for request deadlines.
+ * <p>
+ * Timeouts are dropped into one of a fixed ring of buckets, one per tick, and
+ * carry the number of full turns of the wheel still to wait. Scheduling and
+ * cancelling are O(1) list operations; each tick only visits one bucket.
+ * Deadlines are accurate to one tick, which is plenty for timeouts measured
+ * in tens of seconds. A single daemon thread drives the wheel and sleeps
+ * while nothing is scheduled.
+ */
+class TimerWheel {
+
+	private static final String TAG = "TimerWheel";
+
+	interface Task {
+		void onTimeout();
+	}
+
+	/**
+	 * Handle for a scheduled task, used to cancel it
+	 */
+	static final class Timeout {
+		final Task mTask;
+		int mRounds;
+		int mBucket = -1;
+		Timeout mPrev;
+		Timeout mNext;
+
+		Timeout(Task task) {
+			mTask = task;
+		}
+	}
+
+	private final String mName;
+	private final long mTickMillis;
+	private final Timeout[] mBuckets;
+	private final int mMask;
+
+	private long mTick = 0;
+	private long mNextTickAt = 0;
+	private int mCount = 0;
+	private Thread mThread = null;
+
+	/**
+	 * @param name name of the driving thread
+	 * @param tickMillis resolution of the wheel
+	 * @param wheelSize number of buckets, rounded up to a power of two
+	 */
+	TimerWheel(String name, long tickMillis, int wheelSize) {
+		int size = 1;
+		while (size < wheelSize) {
+			size <<= 1;
+		}
+		mName = name;
+		mTickMillis = tickMillis;
+		mBuckets = new Timeout[size];
+		mMask = size - 1;
+	}
+
+	/**
+	 * Runs task on the wheel thread after delayMillis, unless cancelled
+	 *
+	 * @param task
+	 * @param delayMillis
+	 * @return handle for {@link #cancel(Timeout)}
+	 */
+	synchronized Timeout schedule(Task task, long delayMillis) {
+		if (mCount == 0) {
+			// The wheel was idle, restart the clock rather than catch up
+			mNextTickAt = now() + mTickMillis;
+		}
+		long ticks = Math.max(1, (delayMillis + mTickMillis - 1) / mTickMillis);
+		Timeout timeout = new Timeout(task);
+		timeout.mRounds = (int) ((ticks - 1) / mBuckets.length);
+		link(timeout, (int) ((mTick + ticks - 1) & mMask));
+		mCount++;
+		start();
+		notifyAll();
+		return timeout;
+	}
+
+	/**
+	 * Cancels a scheduled task
+	 *
+	 * @param timeout may be null
+	 * @return false if the task already ran or was cancelled
+	 */
+	synchronized boolean cancel(Timeout timeout) {
+		if (timeout == null || timeout.mBucket < 0) {
+			return false;
+		}
+		unlink(timeout);
+		mCount--;
+		return true;
+	}
+
+	/**
+	 * Number of tasks waiting to run
+	 *
+	 * @return
+	 */
+	synchronized int size() {
+		return mCount;
+	}
+
+	/**
+	 * Clock the wheel runs on, in milliseconds
+	 *
+	 * @return
+	 */
+	long now() {
+		return SystemClock.elapsedRealtime();
+	}
+
+	private void start() {
+		if (mThread != null) {
+			return;
+		}
+		mThread = new Thread(new Runnable() {
+			public void run() {
+				loop();
+			}
+		}, mName);
+		mThread.setDaemon(true);
+		mThread.start();
+	}
+
+	private void loop() {
+		ArrayList<Timeout> expired = new ArrayList<Timeout>();
+		while (true) {
+			synchronized (this) {
+				try {
+					while (mCount == 0) {
+						wait();
+					}
+					long wait = mNextTickAt - now();
+					if (wait > 0) {
+						wait(wait);
+						continue;
+					}
+				} catch (InterruptedException e) {
+					mThread = null;
+					return;
+				}
+				long now = now();
+				while (mNextTickAt <= now) {
+					expire((int) (mTick & mMask), expired);
+					mTick++;
+					mNextTickAt += mTickMillis;
+				}
+			}
+
+			for (int i = 0, n = expired.size(); i < n; i++) {
+				try {
+					expired.get(i).mTask.onTimeout();
+				} catch (RuntimeException e) {
+					Log.e(TAG, "Timeout task failed", e);
+				}
+			}
+			expired.clear();
+		}
+	}
+
+	/**
+	 * Moves every timeout in the bucket that is due on this turn to expired
+	 */
+	private void expire(int bucket, ArrayList<Timeout> expired) {
+		Timeout timeout = mBuckets[bucket];
+		while (timeout != null) {
+			Timeout next = timeout.mNext;
+			if (timeout.mRounds == 0) {
+				unlink(timeout);
+				mCount--;
+				expired.add(timeout);
+			} else {
+				timeout.mRounds--;
+			}
+			timeout = next;
+		}
+	}
+
+	private void link(Timeout timeout, int bucket) {
+		timeout.mBucket = bucket;
+		timeout.mPrev = null;
+		timeout.mNext = mBuckets[bucket];
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrev = timeout;
+		}
+		mBuckets[bucket] = timeout;
+	}
+
+	private void unlink(Timeout timeout) {
+		if (timeout.mPrev != null) {
+			timeout.mPrev.mNext = timeout.mNext;
+		} else {
+			mBuckets[timeout.mBucket] = timeout.mNext;
+		}
+		if (timeout.mNext != null) {
+			timeout.mNext.mPrev = timeout.mPrev;
+		}
+		timeout.mPrev = null;
+		timeout.mNext = null;
+		timeout.mBucket = -1;
+	}
+}
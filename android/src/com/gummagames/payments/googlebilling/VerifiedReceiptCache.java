@@ -0,0 +1,149 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.SystemClock;
+
+import com.gummagames.payments.PaidProduct;
+
+/**
+ * Bounded memo of signed payloads that already passed signature verification.
+ * Market redelivers the same signed payload when a confirmation is lost, so a
+ * hit lets us skip both the RSA check and the JSON parse.
+ * Entries are evicted least recently used once the cache is full, and expire
+ * after a maximum age.
+ */
+class VerifiedReceiptCache {
+
+	static final int DEFAULT_MAX_ENTRIES = 64;
+	static final long DEFAULT_MAX_AGE_MILLIS = 10 * 60 * 1000L;
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private static final class Entry {
+		final Object key;
+		final String signedData;
+		final String signature;
+		final ArrayList<PaidProduct> purchases;
+		final long created;
+
+		Entry(Object key, String signedData, String signature, ArrayList<PaidProduct> purchases, long created) {
+			this.key = key;
+			this.signedData = signedData;
+			this.signature = signature;
+			this.purchases = purchases;
+			this.created = created;
+		}
+	}
+
+	private final int mMaxEntries;
+	private final long mMaxAgeMillis;
+	private final LinkedHashMap<Long, Entry> mEntries;
+
+	VerifiedReceiptCache() {
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE_MILLIS);
+	}
+
+	@SuppressWarnings("serial")
+	VerifiedReceiptCache(int maxEntries, long maxAgeMillis) {
+		mMaxEntries = maxEntries;
+		mMaxAgeMillis = maxAgeMillis;
+		mEntries = new LinkedHashMap<Long, Entry>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Long, Entry> eldest) {
+				return size() > mMaxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Looks up the purchases previously verified for this exact payload
+	 *
+	 * @param key the key the payload was verified with
+	 * @param signedData
+	 * @param signature
+	 * @return a new list of the cached purchases, or null on a miss
+	 */
+	synchronized ArrayList<PaidProduct> get(Object key, String signedData, String signature) {
+		if (signedData == null || signature == null) {
+			return null;
+		}
+		Long digest = Long.valueOf(digest(signedData, signature));
+		Entry entry = mEntries.get(digest);
+		if (entry == null) {
+			return null;
+		}
+		if (SystemClock.elapsedRealtime() - entry.created > mMaxAgeMillis) {
+			mEntries.remove(digest);
+			return null;
+		}
+		// The digest is only a cheap index, never trust it on its own
+		if (entry.key != key || !entry.signature.equals(signature) || !entry.signedData.equals(signedData)) {
+			return null;
+		}
+		return new ArrayList<PaidProduct>(entry.purchases);
+	}
+
+	/**
+	 * Remembers the purchases parsed from a payload that passed verification
+	 *
+	 * @param key the key the payload was verified with
+	 * @param signedData
+	 * @param signature
+	 * @param purchases
+	 */
+	synchronized void put(Object key, String signedData, String signature, ArrayList<PaidProduct> purchases) {
+		if (signedData == null || signature == null || purchases == null) {
+			return;
+		}
+		long now = SystemClock.elapsedRealtime();
+		mEntries.put(Long.valueOf(digest(signedData, signature)), new Entry(key, signedData, signature,
+				new ArrayList<PaidProduct>(purchases), now));
+	}
+
+	synchronized void clear() {
+		mEntries.clear();
+	}
+
+	synchronized int size() {
+		return mEntries.size();
+	}
+
+	/**
+	 * 64-bit FNV-1a over both strings
+	 */
+	static long digest(String signedData, String signature) {
+		long hash = FNV_OFFSET;
+		hash = fnv(hash, signature);
+		hash = (hash ^ 0xff) * FNV_PRIME;
+		hash = fnv(hash, signedData);
+		return hash;
+	}
+
+	private static long fnv(long hash, String s) {
+		int length = s.length();
+		for (int i = 0; i < length; i++) {
+			char c = s.charAt(i);
+			hash = (hash ^ (c & 0xff)) * FNV_PRIME;
+			hash = (hash ^ (c >>> 8)) * FNV_PRIME;
+		}
+		return hash;
+	}
+}
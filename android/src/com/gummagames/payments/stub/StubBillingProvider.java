@@ -15,7 +15,7 @@
 
 package com.gummagames.payments.stub;
 
-import java.util.LinkedList;
+import java.util.ArrayList;
 
 import android.app.Activity;
 import android.content.Context;
@@ -23,9 +23,11 @@ import android.util.Log;
 import android.view.View;
 
 import com.gummagames.payments.BillingProvider;
+import com.gummagames.payments.BillingProvider.RestoreTransactionsListener;
 import com.gummagames.payments.BillingResponseCode;
 import com.gummagames.payments.IPaidProduct;
 import com.gummagames.payments.PaidProduct;
+import com.gummagames.payments.PurchaseEvent;
 
 /**
  * Stub billing provider for development use when normal market billing is
@@ -38,7 +40,7 @@ public class StubBillingProvider implements BillingProvider {
 
 	public static final String LOGTAG = "GUMMAPAYMENTS";
 
-	private LinkedList<BillingProvider.BillingResponseListener> mEventListeners = new LinkedList<BillingProvider.BillingResponseListener>();
+	private ArrayList<BillingProvider.BillingResponseListener> mEventListeners = new ArrayList<BillingProvider.BillingResponseListener>();
 
 	private static StubBillingProvider mInstance = null;
 
@@ -117,6 +119,18 @@ public class StubBillingProvider implements BillingProvider {
 		return 0;
 	}
 
+	/**
+	 * The stub has no purchases to restore, so it only accepts the request
+	 */
+	public boolean restoreTransactions() {
+		for (BillingResponseListener listener : mEventListeners) {
+			if (listener instanceof RestoreTransactionsListener) {
+				((RestoreTransactionsListener) listener).onRestoreTransactionsAccepted(BillingResponseCode.OK);
+			}
+		}
+		return true;
+	}
+
 	// @Override
 	public void attachBillingResponseListener(BillingResponseListener listener) {
 		mEventListeners.add(listener);
@@ -125,34 +139,21 @@ public class StubBillingProvider implements BillingProvider {
 	public void onPurchaseSuccess(String itemId, int quantity, long purchaseTime,
 			String developerPayload) {
 
-		int purchaseResponseCode = BillingResponseCode.OK;
-		PaidProduct pp = new PaidProduct(itemId, developerPayload);
-
-		for (BillingProvider.BillingResponseListener listener : mEventListeners) {
-
-			if (purchaseResponseCode == BillingResponseCode.OK) {
-				listener.onPurchaseSuccess(pp, purchaseResponseCode);
-			} else {
-				listener.onPurchaseFailed(pp, purchaseResponseCode);
-			}
-		}
+		PurchaseEvent event = PurchaseEvent.obtain(itemId, developerPayload, BillingResponseCode.OK);
+		event.purchaseTime = purchaseTime;
+		event.deliverTo(mEventListeners);
+		event.recycle();
 
 	}
 
 	public void onPurchaseFailed(String itemId, int quantity, long purchaseTime,
 			String developerPayload) {
 
-		int purchaseResponseCode = BillingResponseCode.SERVICE_UNAVAILABLE;
-		PaidProduct pp = new PaidProduct(itemId, developerPayload);
-
-		for (BillingProvider.BillingResponseListener listener : mEventListeners) {
-
-			if (purchaseResponseCode == BillingResponseCode.OK) {
-				listener.onPurchaseSuccess(pp, purchaseResponseCode);
-			} else {
-				listener.onPurchaseFailed(pp, purchaseResponseCode);
-			}
-		}
+		PurchaseEvent event = PurchaseEvent.obtain(itemId, developerPayload,
+				BillingResponseCode.SERVICE_UNAVAILABLE);
+		event.purchaseTime = purchaseTime;
+		event.deliverTo(mEventListeners);
+		event.recycle();
 
 	}
 
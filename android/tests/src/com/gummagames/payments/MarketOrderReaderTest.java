@@ -0,0 +1,260 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Test;
+
+import com.gummagames.payments.PaidProduct.MarketJson;
+
+public class MarketOrderReaderTest {
+
+	private final int mCores = MarketOrderReader.sCores;
+
+	@After
+	public void tearDown() {
+		MarketOrderReader.sCores = mCores;
+	}
+
+	/**
+	 * The org.json path MarketOrderReader replaced
+	 */
+	private static ArrayList<PaidProduct> readWithOrgJson(String json, boolean verified) throws JSONException {
+		ArrayList<PaidProduct> prods = new ArrayList<PaidProduct>();
+		JSONArray orders = new JSONObject(json).optJSONArray(MarketJson.orders);
+		for (int i = 0; orders != null && i < orders.length(); i++) {
+			PaidProduct pp = new PaidProduct();
+			if (pp.loadMarketJson(orders.getJSONObject(i))) {
+				pp.setVerified(verified);
+				prods.add(pp);
+			}
+		}
+		return prods;
+	}
+
+	private static void assertSameOrder(PaidProduct expected, PaidProduct actual) {
+		assertEquals(expected.getProductID(), actual.getProductID());
+		assertEquals(expected.purchaseState, actual.purchaseState);
+		assertEquals(expected.purchaseTime, actual.purchaseTime);
+		assertEquals(expected.notificationID, actual.notificationID);
+		assertEquals(expected.orderId, actual.orderId);
+		assertEquals(expected.getProductExtraData(), actual.getProductExtraData());
+		assertEquals(expected.isVerified(), actual.isVerified());
+	}
+
+	private static void assertMatchesOrgJson(String json) throws JSONException {
+		ArrayList<PaidProduct> expected = readWithOrgJson(json, true);
+		ArrayList<PaidProduct> actual = MarketOrderReader.readOrders(json, true);
+		assertEquals(expected.size(), actual.size());
+		for (int i = 0; i < expected.size(); i++) {
+			assertSameOrder(expected.get(i), actual.get(i));
+		}
+	}
+
+	private static void assertRejected(String json) {
+		try {
+			MarketOrderReader.readOrders(json, false);
+			fail("Reader accepted " + json);
+		} catch (JSONException e) {
+			// expected
+		}
+		try {
+			new JSONObject(json);
+			fail("org.json accepted " + json);
+		} catch (JSONException e) {
+			// both agree
+		}
+	}
+
+	private static String order(int i) {
+		return "{\"notificationId\":\"n" + i + "\",\"orderId\":\"1234567890." + i
+				+ "\",\"packageName\":\"com.example.game\",\"productId\":\"item_" + (i % 7)
+				+ "\",\"purchaseTime\":" + (1300000000000L + i) + ",\"purchaseState\":" + (i % 3)
+				+ ",\"developerPayload\":\"payload " + i + "\"}";
+	}
+
+	private static String payload(int orders) {
+		StringBuilder sb = new StringBuilder("{\"nonce\":-7398263467802395,\"orders\":[");
+		for (int i = 0; i < orders; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append(order(i));
+		}
+		return sb.append("]}").toString();
+	}
+
+	@Test
+	public void typicalPayloadMatchesOrgJson() throws JSONException {
+		assertMatchesOrgJson(payload(3));
+		assertEquals(-7398263467802395L, MarketOrderReader.readNonce(payload(3)));
+	}
+
+	@Test
+	public void whitespaceAndMemberOrderDoNotMatter() throws JSONException {
+		assertMatchesOrgJson("\r\n{ \"orders\" :\t[ { \"purchaseState\" : 2 ,\n \"productId\" : \"a\" ,"
+				+ " \"purchaseTime\" : 5 } ] , \"nonce\" : 1 }\n");
+	}
+
+	@Test
+	public void escapesMatchOrgJson() throws JSONException {
+		assertMatchesOrgJson("{\"orders\":[{\"productId\":\"quote\\\" slash\\\\ solidus\\/ \\b\\f\\n\\r\\t\","
+				+ "\"purchaseState\":0,\"developerPayload\":\"caf\\u00e9 \\u4e2d \\ud83d\\ude00 \\u005C\","
+				+ "\"orderId\":\"\\u0031\\u0032\"}]}");
+	}
+
+	@Test
+	public void escapedMemberNamesAreMatched() throws JSONException {
+		String json = "{\"\\u006frders\":[{\"product\\u0049d\":\"a\",\"purchase\\u0053tate\":1}],"
+				+ "\"\\u006eonce\":42}";
+		assertMatchesOrgJson(json);
+		ArrayList<PaidProduct> prods = MarketOrderReader.readOrders(json, false);
+		assertEquals(1, prods.size());
+		assertEquals("a", prods.get(0).getProductID());
+		assertEquals(PurchaseState.CANCELED, prods.get(0).purchaseState);
+		assertEquals(42, MarketOrderReader.readNonce(json));
+	}
+
+	@Test
+	public void skippedNestedValuesMatchOrgJson() throws JSONException {
+		assertMatchesOrgJson("{\"extra\":{\"a\":[1,2,{\"b\":\"}]\\\"{[\"}],\"c\":[[],[[{}]]]},"
+				+ "\"orders\":[{\"meta\":{\"orders\":[{\"productId\":\"inner\"}]},\"productId\":\"outer\","
+				+ "\"flags\":[true,false,null,-1.5e3],\"purchaseState\":0}],"
+				+ "\"tail\":[\"]\",\"}\"]}");
+	}
+
+	@Test
+	public void numbersMatchOrgJson() throws JSONException {
+		assertMatchesOrgJson("{\"orders\":[{\"productId\":\"a\",\"purchaseState\":0,"
+				+ "\"purchaseTime\":-9223372036854775807},{\"productId\":\"b\",\"purchaseState\":2,"
+				+ "\"purchaseTime\":1.5e3},{\"productId\":\"c\",\"purchaseState\":\"1\"}]}");
+	}
+
+	@Test
+	public void ordersWithoutStateOrProductAreDropped() throws JSONException {
+		assertMatchesOrgJson("{\"orders\":[{\"productId\":\"a\"},{\"purchaseState\":0},"
+				+ "{\"productId\":\"b\",\"purchaseState\":0}]}");
+	}
+
+	@Test
+	public void missingOrEmptyOrdersMatchOrgJson() throws JSONException {
+		assertMatchesOrgJson("{\"nonce\":1}");
+		assertMatchesOrgJson("{\"orders\":[]}");
+		assertMatchesOrgJson("{}");
+		assertEquals(NonceRegistry.NO_NONCE, MarketOrderReader.readNonce("{\"orders\":[]}"));
+	}
+
+	/**
+	 * org.json turns a JSON null into the string "null" for getString and
+	 * optString; the reader keeps it null, so a null product ID drops the
+	 * order instead of recording a product called "null"
+	 */
+	@Test
+	public void nullsStayNull() throws JSONException {
+		ArrayList<PaidProduct> prods = MarketOrderReader.readOrders("{\"orders\":[{\"productId\":\"a\","
+				+ "\"purchaseState\":0,\"orderId\":null,\"notificationId\":null,\"developerPayload\":null},"
+				+ "{\"productId\":null,\"purchaseState\":0}],\"nonce\":null}", false);
+		assertEquals(1, prods.size());
+		assertEquals("a", prods.get(0).getProductID());
+		assertNull(prods.get(0).orderId);
+		assertNull(prods.get(0).notificationID);
+		assertNull(prods.get(0).getProductExtraData());
+
+		assertEquals(0, MarketOrderReader.readOrders("{\"orders\":null}", false).size());
+	}
+
+	@Test
+	public void malformedInputIsRejected() {
+		assertRejected("");
+		assertRejected("[]");
+		assertRejected("{\"orders\" []}");
+		assertRejected("{\"orders\":[{\"productId\":\"a\" \"purchaseState\":0}]}");
+		assertRejected("{\"orders\":[{\"productId\":\"a\",\"purchaseState\":0}}");
+		assertRejected("{\"orders\":[{\"productId\":\"a\",\"purchaseState\":0},]}");
+	}
+
+	@Test
+	public void truncatedInputIsRejected() {
+		String json = payload(2);
+		// Every prefix that cuts into the orders array is incomplete
+		for (int end = json.indexOf('[') + 1; end < json.length() - 1; end++) {
+			try {
+				MarketOrderReader.readOrders(json.substring(0, end), false);
+				fail("Reader accepted a payload cut at " + end);
+			} catch (JSONException e) {
+				// expected
+			}
+		}
+	}
+
+	@Test
+	public void singleOrderMatchesOrgJson() throws JSONException {
+		String json = order(5);
+		PaidProduct expected = new PaidProduct();
+		assertTrue(expected.loadMarketJson(new JSONObject(json)));
+		PaidProduct actual = new PaidProduct();
+		assertTrue(MarketOrderReader.readOrder(json, actual));
+		assertSameOrder(expected, actual);
+	}
+
+	@Test
+	public void largePayloadTakesParallelPathAndMatchesOrgJson() throws JSONException {
+		String json = payload(MarketOrderReader.PARALLEL_MIN_ORDERS * 4);
+		assertTrue(json.length() > MarketOrderReader.PARALLEL_MIN_CHARS);
+
+		MarketOrderReader.sCores = 4;
+		assertMatchesOrgJson(json);
+
+		// Same result as the sequential path
+		ArrayList<PaidProduct> parallel = MarketOrderReader.readOrders(json, true);
+		MarketOrderReader.sCores = 1;
+		ArrayList<PaidProduct> sequential = MarketOrderReader.readOrders(json, true);
+		assertEquals(sequential.size(), parallel.size());
+		for (int i = 0; i < sequential.size(); i++) {
+			assertSameOrder(sequential.get(i), parallel.get(i));
+		}
+	}
+
+	@Test
+	public void largeMalformedPayloadIsRejectedOnParallelPath() {
+		MarketOrderReader.sCores = 4;
+		String json = payload(MarketOrderReader.PARALLEL_MIN_ORDERS * 2);
+		int cut = json.length() / 2;
+		// A broken order in the middle fails the whole payload
+		String broken = json.substring(0, cut) + "\"" + json.substring(cut);
+		try {
+			MarketOrderReader.readOrders(broken, false);
+			fail("Reader accepted a broken order");
+		} catch (JSONException e) {
+			// expected
+		}
+		try {
+			MarketOrderReader.readOrders(json.substring(0, json.length() - 2), false);
+			fail("Reader accepted an unterminated orders array");
+		} catch (JSONException e) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,296 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PurchaseLedgerTest {
+
+	private File mDir;
+
+	@Before
+	public void setUp() throws IOException {
+		mDir = File.createTempFile("ledger", "");
+		assertTrue(mDir.delete());
+		assertTrue(mDir.mkdir());
+	}
+
+	@After
+	public void tearDown() {
+		File[] files = mDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		mDir.delete();
+	}
+
+	private File ledgerFile() {
+		return new File(mDir, PurchaseLedger.FILE_NAME);
+	}
+
+	private static PaidProduct purchase(String orderId, PurchaseState state, long time) {
+		PaidProduct product = new PaidProduct("item_" + orderId, "payload " + orderId);
+		product.orderId = orderId;
+		product.notificationID = "n" + orderId;
+		product.purchaseState = state;
+		product.purchaseTime = time;
+		product.setVerified(true);
+		return product;
+	}
+
+	/**
+	 * Appends the purchases and closes the ledger so they are on disk
+	 */
+	private void write(PaidProduct... products) {
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		for (PaidProduct product : products) {
+			ledger.append(product);
+		}
+		ledger.close();
+	}
+
+	private static void assertSamePurchase(PaidProduct expected, PaidProduct actual) {
+		assertEquals(expected.orderId, actual.orderId);
+		assertEquals(expected.getProductID(), actual.getProductID());
+		assertEquals(expected.purchaseState, actual.purchaseState);
+		assertEquals(expected.purchaseTime, actual.purchaseTime);
+		assertEquals(expected.notificationID, actual.notificationID);
+		assertEquals(expected.getProductExtraData(), actual.getProductExtraData());
+		assertTrue(actual.isVerified());
+	}
+
+	private static void setByte(File file, long offset, int delta) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.seek(offset);
+			int b = raf.read();
+			raf.seek(offset);
+			raf.write(b + delta);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static void setLength(File file, long length) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			raf.setLength(length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	@Test
+	public void recordsSurviveReopen() {
+		PaidProduct a = purchase("1", PurchaseState.PURCHASED, 100);
+		PaidProduct b = purchase("2", PurchaseState.CANCELED, 200);
+		PaidProduct c = purchase("3", PurchaseState.REFUNDED, 300);
+		c.notificationID = null;
+		c.setProductExtraData(null);
+		write(a, b, c);
+
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		ArrayList<PaidProduct> purchases = ledger.getPurchases();
+		assertEquals(3, purchases.size());
+		assertSamePurchase(a, purchases.get(0));
+		assertSamePurchase(b, purchases.get(1));
+		assertSamePurchase(c, purchases.get(2));
+		ledger.close();
+	}
+
+	@Test
+	public void latestStateWinsAndRedeliveriesAreSkipped() {
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		ledger.append(purchase("1", PurchaseState.PURCHASED, 100));
+		ledger.append(purchase("1", PurchaseState.PURCHASED, 100));
+		ledger.append(purchase("1", PurchaseState.REFUNDED, 500));
+		ledger.close();
+		long length = ledgerFile().length();
+
+		ledger = PurchaseLedger.open(mDir);
+		assertEquals(1, ledger.size());
+		assertEquals(PurchaseState.REFUNDED, ledger.getOrder("1").purchaseState);
+		ledger.close();
+
+		// Writing the same state again adds nothing
+		write(purchase("1", PurchaseState.REFUNDED, 500));
+		assertEquals(length, ledgerFile().length());
+	}
+
+	@Test
+	public void unverifiedAndAnonymousPurchasesAreIgnored() {
+		PaidProduct unverified = purchase("1", PurchaseState.PURCHASED, 100);
+		unverified.setVerified(false);
+		PaidProduct anonymous = purchase("2", PurchaseState.PURCHASED, 100);
+		anonymous.orderId = null;
+		write(unverified, anonymous, null);
+
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		assertEquals(0, ledger.size());
+		ledger.close();
+	}
+
+	@Test
+	public void tornTailIsTruncated() throws IOException {
+		write(purchase("1", PurchaseState.PURCHASED, 100), purchase("2", PurchaseState.PURCHASED, 200));
+		long twoRecords = ledgerFile().length();
+		write(purchase("3", PurchaseState.PURCHASED, 300));
+		long full = ledgerFile().length();
+
+		// Cut every way into the last record: its header, then its payload
+		for (long cut = twoRecords + 1; cut < full; cut++) {
+			write(purchase("3", PurchaseState.PURCHASED, 300));
+			setLength(ledgerFile(), cut);
+
+			PurchaseLedger ledger = PurchaseLedger.open(mDir);
+			assertEquals(2, ledger.size());
+			assertNull(ledger.getOrder("3"));
+			ledger.close();
+			assertEquals(twoRecords, ledgerFile().length());
+		}
+	}
+
+	@Test
+	public void appendsAfterRecoveryAreReadable() throws IOException {
+		write(purchase("1", PurchaseState.PURCHASED, 100), purchase("2", PurchaseState.PURCHASED, 200));
+		setLength(ledgerFile(), ledgerFile().length() - 3);
+
+		write(purchase("3", PurchaseState.PURCHASED, 300));
+
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		assertEquals(2, ledger.size());
+		assertSamePurchase(purchase("1", PurchaseState.PURCHASED, 100), ledger.getOrder("1"));
+		assertSamePurchase(purchase("3", PurchaseState.PURCHASED, 300), ledger.getOrder("3"));
+		assertNull(ledger.getOrder("2"));
+		ledger.close();
+	}
+
+	@Test
+	public void corruptTailPayloadIsDropped() throws IOException {
+		write(purchase("1", PurchaseState.PURCHASED, 100), purchase("2", PurchaseState.PURCHASED, 200));
+		long oneRecord = ledgerFile().length() / 2;
+		// Last byte of the second record's payload no longer matches its CRC
+		setByte(ledgerFile(), ledgerFile().length() - 1, 1);
+
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		assertEquals(1, ledger.size());
+		assertSamePurchase(purchase("1", PurchaseState.PURCHASED, 100), ledger.getOrder("1"));
+		ledger.close();
+		assertEquals(oneRecord, ledgerFile().length());
+	}
+
+	@Test
+	public void corruptRecordDropsEverythingAfterIt() throws IOException {
+		write(purchase("1", PurchaseState.PURCHASED, 100), purchase("2", PurchaseState.PURCHASED, 200),
+				purchase("3", PurchaseState.PURCHASED, 300));
+		long oneRecord = ledgerFile().length() / 3;
+		// Checksum of the middle record
+		setByte(ledgerFile(), oneRecord + 5, 1);
+
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		assertEquals(1, ledger.size());
+		assertNull(ledger.getOrder("2"));
+		assertNull(ledger.getOrder("3"));
+		ledger.close();
+		assertEquals(oneRecord, ledgerFile().length());
+	}
+
+	@Test
+	public void garbageLengthIsTreatedAsCorruption() throws IOException {
+		write(purchase("1", PurchaseState.PURCHASED, 100));
+		long oneRecord = ledgerFile().length();
+		FileOutputStream out = new FileOutputStream(ledgerFile(), true);
+		try {
+			// A huge length followed by a checksum and a few payload bytes
+			out.write(new byte[] { 0x7f, -1, -1, -1, 0, 0, 0, 0, 1, 2, 3 });
+		} finally {
+			out.close();
+		}
+
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		assertEquals(1, ledger.size());
+		ledger.close();
+		assertEquals(oneRecord, ledgerFile().length());
+	}
+
+	@Test
+	public void compactionKeepsOnlyLiveRecords() {
+		write(purchase("probe", PurchaseState.PURCHASED, 1));
+		long oneRecord = ledgerFile().length();
+		assertTrue(ledgerFile().delete());
+
+		// Many updates to a few orders push the record count past the
+		// compaction threshold
+		int updates = 300;
+		PurchaseLedger ledger = PurchaseLedger.open(mDir);
+		for (int i = 0; i < updates; i++) {
+			PurchaseState state = i % 2 == 0 ? PurchaseState.PURCHASED : PurchaseState.REFUNDED;
+			ledger.append(purchase("prob" + (i % 3), state, 1000 + i));
+		}
+		ledger.close();
+
+		// Records with the same field lengths all have the same size
+		long length = ledgerFile().length();
+		assertEquals(0, length % oneRecord);
+		assertTrue("ledger was not compacted: " + length / oneRecord + " records",
+				length / oneRecord < updates / 2);
+		assertFalse(new File(mDir, PurchaseLedger.FILE_NAME + ".tmp").exists());
+
+		ledger = PurchaseLedger.open(mDir);
+		assertEquals(3, ledger.size());
+		for (int i = updates - 3; i < updates; i++) {
+			PurchaseState state = i % 2 == 0 ? PurchaseState.PURCHASED : PurchaseState.REFUNDED;
+			assertSamePurchase(purchase("prob" + (i % 3), state, 1000 + i), ledger.getOrder("prob" + (i % 3)));
+		}
+
+		// The compacted file takes appends like any other
+		ledger.append(purchase("prob9", PurchaseState.PURCHASED, 9));
+		ledger.close();
+		ledger = PurchaseLedger.open(mDir);
+		assertEquals(4, ledger.size());
+		ledger.close();
+	}
+
+	@Test
+	public void listenerSeesLoadedAndAppendedRecords() {
+		write(purchase("1", PurchaseState.PURCHASED, 100));
+		final ArrayList<String> seen = new ArrayList<String>();
+		PurchaseLedger ledger = PurchaseLedger.open(mDir, new PurchaseLedger.LedgerListener() {
+			public void onLedgerRecord(PaidProduct product) {
+				seen.add(product.orderId);
+			}
+		});
+		ledger.append(purchase("2", PurchaseState.PURCHASED, 200));
+		ledger.close();
+		assertEquals(2, seen.size());
+		assertEquals("1", seen.get(0));
+		assertEquals("2", seen.get(1));
+	}
+}
@@ -0,0 +1,149 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+public class LongRequestMapTest {
+
+	@Test
+	public void putGetRemove() {
+		LongRequestMap<String> map = new LongRequestMap<String>();
+		assertNull(map.put(42L, "a"));
+		assertEquals("a", map.get(42L));
+		assertEquals(1, map.size());
+
+		assertEquals("a", map.put(42L, "b"));
+		assertEquals("b", map.get(42L));
+		assertEquals(1, map.size());
+
+		assertEquals("b", map.remove(42L));
+		assertNull(map.get(42L));
+		assertNull(map.remove(42L));
+		assertEquals(0, map.size());
+	}
+
+	@Test
+	public void zeroAndNegativeKeys() {
+		LongRequestMap<String> map = new LongRequestMap<String>();
+		map.put(0L, "zero");
+		map.put(-1L, "minus one");
+		map.put(Long.MIN_VALUE, "min");
+		assertEquals("zero", map.get(0L));
+		assertEquals("minus one", map.get(-1L));
+		assertEquals("min", map.get(Long.MIN_VALUE));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void rejectsNullValues() {
+		new LongRequestMap<String>().put(1L, null);
+	}
+
+	/**
+	 * Removing from the middle of a probe run must shift the rest of the run
+	 * back so every remaining key is still found
+	 */
+	@Test
+	public void removeKeepsProbeRunsReachable() {
+		LongRequestMap<Long> map = new LongRequestMap<Long>();
+		int count = 2000;
+		for (long key = 0; key < count; key++) {
+			map.put(key, key);
+		}
+		for (long key = 0; key < count; key += 3) {
+			assertEquals(Long.valueOf(key), map.remove(key));
+		}
+		for (long key = 0; key < count; key++) {
+			if (key % 3 == 0) {
+				assertNull(map.get(key));
+			} else {
+				assertEquals(Long.valueOf(key), map.get(key));
+			}
+		}
+		assertEquals(count - (count + 2) / 3, map.size());
+	}
+
+	@Test
+	public void matchesHashMapUnderRandomOperations() {
+		LongRequestMap<Long> map = new LongRequestMap<Long>();
+		HashMap<Long, Long> expected = new HashMap<Long, Long>();
+		Random random = new Random(1234);
+		for (int i = 0; i < 200000; i++) {
+			// A small key space keeps runs long and collisions frequent
+			long key = random.nextInt(512);
+			switch (random.nextInt(3)) {
+			case 0:
+				long value = random.nextLong();
+				assertEquals(expected.put(key, value), map.put(key, value));
+				break;
+			case 1:
+				assertEquals(expected.remove(key), map.remove(key));
+				break;
+			default:
+				assertEquals(expected.get(key), map.get(key));
+				break;
+			}
+			assertEquals(expected.size(), map.size());
+		}
+		for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+			assertEquals(entry.getValue(), map.get(entry.getKey()));
+		}
+		ArrayList<Long> values = map.values();
+		assertEquals(expected.size(), values.size());
+		assertTrue(values.containsAll(expected.values()));
+	}
+
+	@Test
+	public void concurrentWritersOnDisjointKeys() throws InterruptedException {
+		final LongRequestMap<Long> map = new LongRequestMap<Long>();
+		final int threads = 8;
+		final int perThread = 5000;
+		final CountDownLatch done = new CountDownLatch(threads);
+		final AtomicInteger errors = new AtomicInteger();
+		for (int t = 0; t < threads; t++) {
+			final long base = (long) t * perThread;
+			new Thread(new Runnable() {
+				public void run() {
+					for (long key = base; key < base + perThread; key++) {
+						map.put(key, key);
+					}
+					for (long key = base; key < base + perThread; key++) {
+						if (!Long.valueOf(key).equals(map.get(key))) {
+							errors.incrementAndGet();
+						}
+						if (key % 2 == 0 && map.remove(key) == null) {
+							errors.incrementAndGet();
+						}
+					}
+					done.countDown();
+				}
+			}).start();
+		}
+		done.await();
+		assertEquals(0, errors.get());
+		assertEquals(threads * perThread / 2, map.size());
+	}
+}
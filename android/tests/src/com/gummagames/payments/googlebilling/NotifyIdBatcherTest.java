@@ -0,0 +1,207 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class NotifyIdBatcherTest {
+
+	/**
+	 * Batcher whose flushes are recorded instead of posted to a handler
+	 */
+	private static class TestBatcher extends NotifyIdBatcher {
+		final ArrayList<Long> mPosted = new ArrayList<Long>();
+		Runnable mPending = null;
+
+		TestBatcher(Sink sink, long windowMillis, int maxBatch) {
+			super(null, sink, windowMillis, maxBatch);
+		}
+
+		@Override
+		void post(Runnable r, long delayMillis) {
+			mPosted.add(delayMillis);
+			mPending = r;
+		}
+
+		@Override
+		void cancel(Runnable r) {
+			mPending = null;
+		}
+
+		void runPending() {
+			Runnable r = mPending;
+			mPending = null;
+			r.run();
+		}
+	}
+
+	private final ArrayList<String[]> mBatches = new ArrayList<String[]>();
+	private final ArrayList<Integer> mStartIds = new ArrayList<Integer>();
+	private boolean mAccept = true;
+
+	private final NotifyIdBatcher.Sink mSink = new NotifyIdBatcher.Sink() {
+		public boolean send(int startId, String[] notifyIds) {
+			if (!mAccept) {
+				return false;
+			}
+			mStartIds.add(startId);
+			mBatches.add(notifyIds);
+			return true;
+		}
+	};
+
+	@Before
+	public void setUp() {
+		mBatches.clear();
+		mStartIds.clear();
+		mAccept = true;
+	}
+
+	@Test
+	public void loneIdWaitsForTheWindow() {
+		TestBatcher batcher = new TestBatcher(mSink, 250, 64);
+		batcher.add(3, new String[] { "a" });
+		assertEquals(1, batcher.mPosted.size());
+		assertEquals(Long.valueOf(250), batcher.mPosted.get(0));
+		assertEquals(0, mBatches.size());
+
+		// Later IDs join the open window without another post
+		batcher.add(5, new String[] { "b" });
+		assertEquals(1, batcher.mPosted.size());
+
+		batcher.runPending();
+		assertEquals(1, mBatches.size());
+		assertArrayEquals(new String[] { "a", "b" }, mBatches.get(0));
+		assertEquals(Integer.valueOf(5), mStartIds.get(0));
+		assertEquals(0, batcher.size());
+	}
+
+	@Test
+	public void fullBatchIsSentWithoutWaiting() {
+		TestBatcher batcher = new TestBatcher(mSink, 250, 3);
+		batcher.add(1, new String[] { "a", "b" });
+		batcher.add(1, new String[] { "c" });
+		assertEquals(Long.valueOf(0), batcher.mPosted.get(batcher.mPosted.size() - 1));
+		batcher.runPending();
+		assertArrayEquals(new String[] { "a", "b", "c" }, mBatches.get(0));
+	}
+
+	@Test
+	public void duplicatesAndNullsAreSentOnce() {
+		TestBatcher batcher = new TestBatcher(mSink, 250, 64);
+		batcher.add(1, new String[] { "a", null, "b", "a" });
+		batcher.add(1, new String[] { "b" });
+		batcher.add(1, null);
+		assertEquals(2, batcher.size());
+		batcher.flush();
+		assertArrayEquals(new String[] { "a", "b" }, mBatches.get(0));
+	}
+
+	@Test
+	public void flushSplitsIntoMaxSizedBatches() {
+		TestBatcher batcher = new TestBatcher(mSink, 250, 64);
+		String[] ids = new String[10];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = "id" + i;
+		}
+		batcher.add(7, ids);
+		batcher.setMaxBatch(4);
+		batcher.flush();
+		assertEquals(3, mBatches.size());
+		assertEquals(4, mBatches.get(0).length);
+		assertEquals(4, mBatches.get(1).length);
+		assertEquals(2, mBatches.get(2).length);
+		assertEquals("id0", mBatches.get(0)[0]);
+		assertEquals("id9", mBatches.get(2)[1]);
+		assertEquals(0, batcher.size());
+	}
+
+	@Test
+	public void refusedBatchIsRetriedAfterTheWindow() {
+		TestBatcher batcher = new TestBatcher(mSink, 250, 2);
+		batcher.add(4, new String[] { "a", "b", "c" });
+		mAccept = false;
+		batcher.runPending();
+		assertEquals(0, mBatches.size());
+		assertEquals(3, batcher.size());
+		assertEquals(Long.valueOf(250), batcher.mPosted.get(batcher.mPosted.size() - 1));
+
+		mAccept = true;
+		batcher.runPending();
+		assertEquals(2, mBatches.size());
+		assertEquals(0, batcher.size());
+		assertEquals(Integer.valueOf(4), mStartIds.get(0));
+	}
+
+	@Test
+	public void startIdResetsAfterEachDrain() {
+		TestBatcher batcher = new TestBatcher(mSink, 250, 64);
+		batcher.add(9, new String[] { "a" });
+		batcher.flush();
+		batcher.add(2, new String[] { "b" });
+		batcher.flush();
+		assertEquals(Integer.valueOf(9), mStartIds.get(0));
+		assertEquals(Integer.valueOf(2), mStartIds.get(1));
+	}
+
+	@Test
+	public void fixedBatcherIgnoresLatency() {
+		TestBatcher batcher = new TestBatcher(mSink, 250, 64);
+		batcher.recordLatency(400);
+		assertEquals(250, batcher.getWindowMillis());
+		assertEquals(64, batcher.getMaxBatch());
+		assertEquals(-1, batcher.getAverageLatencyMillis());
+	}
+
+	@Test
+	public void adaptiveWindowAndBatchFollowLatency() {
+		TestBatcher batcher = new TestBatcher(mSink, 50, 4);
+		batcher.setAdaptive(500, 4, 32);
+
+		// The first sample seeds the average: one ID per 4ms, window = latency
+		batcher.recordLatency(40);
+		assertEquals(40, batcher.getAverageLatencyMillis());
+		assertEquals(40, batcher.getWindowMillis());
+		assertEquals(10, batcher.getMaxBatch());
+
+		// Later samples move the average a quarter of the way
+		batcher.recordLatency(120);
+		assertEquals(60, batcher.getAverageLatencyMillis());
+		assertEquals(60, batcher.getWindowMillis());
+		assertEquals(15, batcher.getMaxBatch());
+	}
+
+	@Test
+	public void adaptiveSizingIsClamped() {
+		TestBatcher batcher = new TestBatcher(mSink, 50, 4);
+		batcher.setAdaptive(500, 4, 32);
+
+		batcher.recordLatency(1);
+		assertEquals(20, batcher.getWindowMillis());
+		assertEquals(4, batcher.getMaxBatch());
+
+		batcher = new TestBatcher(mSink, 50, 4);
+		batcher.setAdaptive(500, 4, 32);
+		batcher.recordLatency(5000);
+		assertEquals(500, batcher.getWindowMillis());
+		assertEquals(32, batcher.getMaxBatch());
+	}
+}
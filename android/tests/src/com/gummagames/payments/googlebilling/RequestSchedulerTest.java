@@ -0,0 +1,149 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class RequestSchedulerTest {
+
+	/**
+	 * Scheduler on a clock the test moves by hand
+	 */
+	private static class TestScheduler extends RequestScheduler<String> {
+		long mNow = 100000;
+
+		TestScheduler() {
+			super();
+		}
+
+		TestScheduler(int[] limits) {
+			super(limits);
+		}
+
+		@Override
+		long now() {
+			return mNow;
+		}
+
+		String poll() {
+			String next = peek();
+			if (next != null) {
+				assertTrue(remove(next));
+			}
+			return next;
+		}
+	}
+
+	@Test
+	public void emptySchedulerHasNothingToPeek() {
+		TestScheduler scheduler = new TestScheduler();
+		assertTrue(scheduler.isEmpty());
+		assertNull(scheduler.peek());
+		assertFalse(scheduler.remove("missing"));
+	}
+
+	@Test
+	public void betterClassGoesFirst() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.offer("restore", RequestScheduler.RESTORE);
+		scheduler.offer("info", RequestScheduler.INFO);
+		scheduler.offer("confirm", RequestScheduler.CONFIRM);
+		scheduler.offer("purchase", RequestScheduler.INTERACTIVE);
+		assertEquals("purchase", scheduler.poll());
+		assertEquals("confirm", scheduler.poll());
+		assertEquals("info", scheduler.poll());
+		assertEquals("restore", scheduler.poll());
+		assertTrue(scheduler.isEmpty());
+	}
+
+	@Test
+	public void fifoWithinAClass() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.offer("a", RequestScheduler.INFO);
+		scheduler.mNow += 10;
+		scheduler.offer("b", RequestScheduler.INFO);
+		scheduler.mNow += 10;
+		scheduler.offer("c", RequestScheduler.INFO);
+		assertEquals("a", scheduler.poll());
+		assertEquals("b", scheduler.poll());
+		assertEquals("c", scheduler.poll());
+	}
+
+	/**
+	 * Every AGING_MILLIS a request has waited longer than another is worth
+	 * one class, so old background work overtakes new interactive work
+	 */
+	@Test
+	public void waitingPromotesOldRequests() {
+		// Two classes apart, queued just under two agings apart: interactive wins
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.offer("info", RequestScheduler.INFO);
+		scheduler.mNow += 2 * RequestScheduler.AGING_MILLIS - 1;
+		scheduler.offer("purchase", RequestScheduler.INTERACTIVE);
+		assertEquals("purchase", scheduler.peek());
+		// Both keep aging at the same rate, so the order holds
+		scheduler.mNow += 10 * RequestScheduler.AGING_MILLIS;
+		assertEquals("purchase", scheduler.peek());
+
+		// Just over two agings apart: info has earned its way ahead
+		scheduler = new TestScheduler();
+		scheduler.offer("info", RequestScheduler.INFO);
+		scheduler.mNow += 2 * RequestScheduler.AGING_MILLIS + 1;
+		scheduler.offer("purchase", RequestScheduler.INTERACTIVE);
+		assertEquals("info", scheduler.poll());
+		assertEquals("purchase", scheduler.poll());
+	}
+
+	@Test
+	public void classesAreBounded() {
+		TestScheduler scheduler = new TestScheduler(new int[] { 2, 1, 1, 1 });
+		assertTrue(scheduler.offer("p1", RequestScheduler.INTERACTIVE));
+		assertTrue(scheduler.offer("p2", RequestScheduler.INTERACTIVE));
+		assertFalse(scheduler.offer("p3", RequestScheduler.INTERACTIVE));
+		// Other classes keep their own room
+		assertTrue(scheduler.offer("r1", RequestScheduler.RESTORE));
+		assertFalse(scheduler.offer("r2", RequestScheduler.RESTORE));
+		assertEquals(2, scheduler.size(RequestScheduler.INTERACTIVE));
+		assertEquals(1, scheduler.size(RequestScheduler.RESTORE));
+
+		// Removing frees a slot
+		assertEquals("p1", scheduler.poll());
+		assertTrue(scheduler.offer("p3", RequestScheduler.INTERACTIVE));
+	}
+
+	@Test
+	public void removeOnlyTakesHeads() {
+		TestScheduler scheduler = new TestScheduler();
+		scheduler.offer("a", RequestScheduler.CONFIRM);
+		scheduler.offer("b", RequestScheduler.CONFIRM);
+		assertFalse(scheduler.remove("b"));
+		assertEquals(2, scheduler.size(RequestScheduler.CONFIRM));
+		assertTrue(scheduler.remove("a"));
+		assertTrue(scheduler.remove("b"));
+		assertTrue(scheduler.isEmpty());
+	}
+
+	@Test
+	public void defaultLimitsAllowOneRestore() {
+		TestScheduler scheduler = new TestScheduler();
+		assertTrue(scheduler.offer("r1", RequestScheduler.RESTORE));
+		assertFalse(scheduler.offer("r2", RequestScheduler.RESTORE));
+	}
+}
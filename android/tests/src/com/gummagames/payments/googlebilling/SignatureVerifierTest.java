@@ -0,0 +1,176 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.Signature;
+
+import org.junit.Test;
+
+public class SignatureVerifierTest {
+
+	private static final String BASE64_ALPHABET = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+	private static final KeyPair KEYS;
+
+	static {
+		try {
+			KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+			generator.initialize(1024);
+			KEYS = generator.generateKeyPair();
+		} catch (GeneralSecurityException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private final SignatureVerifier mVerifier = new SignatureVerifier(KEYS.getPublic());
+
+	/**
+	 * Signs the UTF-8 bytes of data the way Market does
+	 */
+	private static byte[] sign(String data) throws Exception {
+		Signature sig = Signature.getInstance(SignatureVerifier.SIGNATURE_ALGORITHM);
+		sig.initSign(KEYS.getPrivate());
+		sig.update(data.getBytes("UTF-8"));
+		return sig.sign();
+	}
+
+	/**
+	 * Standard padded Base64, optionally wrapped with CRLF every 76
+	 * characters as MIME encoders do
+	 */
+	private static String base64(byte[] bytes, boolean mime) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < bytes.length; i += 3) {
+			int n = (bytes[i] & 0xff) << 16;
+			if (i + 1 < bytes.length) {
+				n |= (bytes[i + 1] & 0xff) << 8;
+			}
+			if (i + 2 < bytes.length) {
+				n |= bytes[i + 2] & 0xff;
+			}
+			sb.append(BASE64_ALPHABET.charAt((n >> 18) & 0x3f));
+			sb.append(BASE64_ALPHABET.charAt((n >> 12) & 0x3f));
+			sb.append(i + 1 < bytes.length ? BASE64_ALPHABET.charAt((n >> 6) & 0x3f) : '=');
+			sb.append(i + 2 < bytes.length ? BASE64_ALPHABET.charAt(n & 0x3f) : '=');
+		}
+		if (mime) {
+			for (int i = 76; i < sb.length(); i += 78) {
+				sb.insert(i, "\r\n");
+			}
+		}
+		return sb.toString();
+	}
+
+	private boolean verify(String data) throws Exception {
+		return mVerifier.verify(data, base64(sign(data), false));
+	}
+
+	@Test
+	public void validSignatureVerifies() throws Exception {
+		String data = "{\"nonce\":1,\"orders\":[{\"productId\":\"sword\",\"purchaseState\":0}]}";
+		assertTrue(verify(data));
+		// The per-thread engine and buffers are reused
+		assertTrue(verify(data));
+	}
+
+	@Test
+	public void tamperedDataFails() throws Exception {
+		String data = "{\"nonce\":1,\"orders\":[{\"productId\":\"sword\",\"purchaseState\":0}]}";
+		String signature = base64(sign(data), false);
+		assertFalse(mVerifier.verify(data.replace("sword", "swore"), signature));
+		assertFalse(mVerifier.verify(data + " ", signature));
+		// A failure leaves the engine usable for the next call
+		assertTrue(mVerifier.verify(data, signature));
+	}
+
+	@Test
+	public void tamperedSignatureFails() throws Exception {
+		String data = "payload";
+		String signature = base64(sign(data), false);
+		char flipped = signature.charAt(10) == 'A' ? 'B' : 'A';
+		assertFalse(mVerifier.verify(data, signature.substring(0, 10) + flipped + signature.substring(11)));
+		// Truncated by one byte's worth and by a whole quantum
+		assertFalse(mVerifier.verify(data, signature.substring(0, signature.length() - 4)));
+		assertFalse(mVerifier.verify(data, signature.substring(0, signature.length() - 5)));
+		assertTrue(mVerifier.verify(data, signature));
+	}
+
+	@Test
+	public void invalidBase64Fails() throws Exception {
+		String data = "payload";
+		String signature = base64(sign(data), false);
+		assertFalse(mVerifier.verify(data, signature.substring(0, 8) + "*" + signature.substring(9)));
+		assertFalse(mVerifier.verify(data, signature.substring(0, 8) + "\u00e9" + signature.substring(9)));
+		// Data after padding
+		assertFalse(mVerifier.verify(data, signature + "AAAA"));
+		// A lone sixth bit group cannot form a byte
+		assertFalse(mVerifier.verify(data, "A"));
+		assertFalse(mVerifier.verify(data, ""));
+		assertFalse(mVerifier.verify(null, signature));
+		assertFalse(mVerifier.verify(data, null));
+	}
+
+	@Test
+	public void mimeLineBreaksAreIgnored() throws Exception {
+		String data = "payload";
+		String mime = base64(sign(data), true);
+		assertTrue(mime.indexOf("\r\n") > 0);
+		assertTrue(mVerifier.verify(data, mime));
+		assertTrue(mVerifier.verify(data, mime.replace("\r\n", "\n") + "\n"));
+		assertTrue(mVerifier.verify(data, " \t" + mime.replace("\r\n", " ")));
+	}
+
+	@Test
+	public void nonAsciiPayloadsVerify() throws Exception {
+		// Two byte, three byte and surrogate pair (four byte) characters
+		assertTrue(verify("{\"developerPayload\":\"caf\u00e9 \u00fc\u00df\"}"));
+		assertTrue(verify("{\"developerPayload\":\"\u4e2d\u6587 \u20ac \uffff\"}"));
+		assertTrue(verify("{\"developerPayload\":\"\ud83d\ude00 \ud800\udc00 \udbff\udfff\"}"));
+		assertTrue(verify("\u007f\u0080\u07ff\u0800"));
+	}
+
+	@Test
+	public void unpairedSurrogatesEncodeLikeGetBytes() throws Exception {
+		assertTrue(verify("lone high \ud83d end"));
+		assertTrue(verify("lone low \ude00 end"));
+		assertTrue(verify("reversed \ude00\ud83d"));
+		assertTrue(verify("trailing high \ud83d"));
+	}
+
+	@Test
+	public void nonAsciiTamperingFails() throws Exception {
+		String data = "{\"developerPayload\":\"\ud83d\ude00\"}";
+		String signature = base64(sign(data), false);
+		assertFalse(mVerifier.verify("{\"developerPayload\":\"\ud83d\ude01\"}", signature));
+		assertTrue(mVerifier.verify(data, signature));
+	}
+
+	@Test
+	public void largePayloadsGrowTheScratchBuffer() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		while (sb.length() < 100 * 1024) {
+			sb.append("{\"productId\":\"item\u00e9\ud83d\ude00\"},");
+		}
+		String data = sb.toString();
+		assertTrue(verify(data));
+		assertTrue(verify("small again"));
+	}
+}
@@ -0,0 +1,168 @@
+//  Copyright 2011-2012 Gumma Corp.
+//
+//  Licensed under the Apache License, Version 2.0 (the "License");
+//  you may not use this file except in compliance with the License.
+//  You may obtain a copy of the License at
+//
+//     http://www.apache.org/licenses/LICENSE-2.0
+//
+//  Unless required by applicable law or agreed to in writing, software
+//  distributed under the License is distributed on an "AS IS" BASIS,
+//     WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+//     See the License for the specific language governing permissions and
+//     limitations under the License.
+
+package com.gummagames.payments.googlebilling;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+public class TimerWheelTest {
+
+	private static final long TICK = 10;
+
+	/**
+	 * Runs on the JVM clock instead of SystemClock
+	 */
+	private static TimerWheel newWheel(int size) {
+		return new TimerWheel("test-wheel", TICK, size) {
+			@Override
+			long now() {
+				return System.nanoTime() / 1000000;
+			}
+		};
+	}
+
+	private static long now() {
+		return System.nanoTime() / 1000000;
+	}
+
+	private static class Recorder implements TimerWheel.Task {
+		final String mName;
+		final List<String> mFired;
+		final CountDownLatch mLatch;
+		volatile long mFiredAt = -1;
+
+		Recorder(String name, List<String> fired, CountDownLatch latch) {
+			mName = name;
+			mFired = fired;
+			mLatch = latch;
+		}
+
+		public void onTimeout() {
+			mFiredAt = now();
+			synchronized (mFired) {
+				mFired.add(mName);
+			}
+			mLatch.countDown();
+		}
+	}
+
+	@Test
+	public void nonPowerOfTwoSizeFiresOnTime() throws InterruptedException {
+		// 5 buckets are rounded up to 8
+		TimerWheel wheel = newWheel(5);
+		CountDownLatch latch = new CountDownLatch(1);
+		Recorder task = new Recorder("a", new ArrayList<String>(), latch);
+		long start = now();
+		wheel.schedule(task, 6 * TICK);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(task.mFiredAt - start >= 5 * TICK);
+	}
+
+	@Test
+	public void firesNoEarlierThanOneTickBeforeDeadline() throws InterruptedException {
+		TimerWheel wheel = newWheel(8);
+		CountDownLatch latch = new CountDownLatch(1);
+		Recorder task = new Recorder("a", new ArrayList<String>(), latch);
+		long start = now();
+		wheel.schedule(task, 50);
+		assertEquals(1, wheel.size());
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertTrue(task.mFiredAt - start >= 50 - TICK);
+		assertEquals(0, wheel.size());
+	}
+
+	/**
+	 * Delays longer than one turn of the wheel wait out their remaining
+	 * rounds instead of firing on the first pass over their bucket
+	 */
+	@Test
+	public void longDelaysWaitForTheirRound() throws InterruptedException {
+		TimerWheel wheel = newWheel(4);
+		List<String> fired = new ArrayList<String>();
+		CountDownLatch latch = new CountDownLatch(3);
+		Recorder shortTask = new Recorder("short", fired, latch);
+		Recorder sameBucket = new Recorder("same bucket", fired, latch);
+		Recorder longTask = new Recorder("long", fired, latch);
+		long start = now();
+		wheel.schedule(shortTask, 2 * TICK);
+		// Four ticks later lands in the same bucket one round on
+		wheel.schedule(sameBucket, 6 * TICK);
+		wheel.schedule(longTask, 25 * TICK);
+		assertTrue(latch.await(5, TimeUnit.SECONDS));
+		assertEquals("short", fired.get(0));
+		assertEquals("same bucket", fired.get(1));
+		assertEquals("long", fired.get(2));
+		assertTrue(sameBucket.mFiredAt - start >= 5 * TICK);
+		assertTrue(longTask.mFiredAt - start >= 24 * TICK);
+	}
+
+	@Test
+	public void cancelledTasksNeverFire() throws InterruptedException {
+		TimerWheel wheel = newWheel(8);
+		List<String> fired = new ArrayList<String>();
+		CountDownLatch latch = new CountDownLatch(1);
+		TimerWheel.Timeout cancelled = wheel.schedule(new Recorder("cancelled", fired, latch), 3 * TICK);
+		wheel.schedule(new Recorder("kept", fired, latch), 6 * TICK);
+		assertTrue(wheel.cancel(cancelled));
+		assertFalse(wheel.cancel(cancelled));
+		assertFalse(wheel.cancel(null));
+		assertEquals(1, wheel.size());
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(5 * TICK);
+		assertEquals(1, fired.size());
+		assertEquals("kept", fired.get(0));
+	}
+
+	@Test
+	public void cancelAfterFiringReturnsFalse() throws InterruptedException {
+		TimerWheel wheel = newWheel(8);
+		CountDownLatch latch = new CountDownLatch(1);
+		TimerWheel.Timeout timeout = wheel.schedule(new Recorder("a", new ArrayList<String>(), latch), TICK);
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		assertFalse(wheel.cancel(timeout));
+	}
+
+	/**
+	 * Cancelling the middle, head and tail of one bucket's list keeps the
+	 * rest of the list intact
+	 */
+	@Test
+	public void cancelUnlinksFromAnyPositionInBucket() throws InterruptedException {
+		TimerWheel wheel = newWheel(8);
+		List<String> fired = new ArrayList<String>();
+		CountDownLatch latch = new CountDownLatch(2);
+		TimerWheel.Timeout[] timeouts = new TimerWheel.Timeout[5];
+		for (int i = 0; i < timeouts.length; i++) {
+			timeouts[i] = wheel.schedule(new Recorder("t" + i, fired, latch), 4 * TICK);
+		}
+		wheel.cancel(timeouts[2]);
+		wheel.cancel(timeouts[4]);
+		wheel.cancel(timeouts[0]);
+		assertEquals(2, wheel.size());
+		assertTrue(latch.await(2, TimeUnit.SECONDS));
+		Thread.sleep(2 * TICK);
+		assertEquals(2, fired.size());
+		assertTrue(fired.contains("t1"));
+		assertTrue(fired.contains("t3"));
+	}
+}